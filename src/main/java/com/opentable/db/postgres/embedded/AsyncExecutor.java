@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the blocking work behind the <code>*Async</code> methods. Unless the caller supplies an {@link Executor},
+ * a shared pool of daemon threads is used: the work is mostly waiting on Docker and PostgreSQL, so the common
+ * fork/join pool, sized for CPU bound work, is a poor fit.
+ */
+final class AsyncExecutor {
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    static final Executor DEFAULT = Executors.newCachedThreadPool(r -> { //NOPMD
+        final Thread t = new Thread(r);
+        t.setDaemon(true);
+        t.setName("otj-pg-embedded-async-" + THREAD_COUNT.incrementAndGet());
+        return t;
+    });
+
+    private AsyncExecutor() {
+    }
+
+    /**
+     * Run a blocking call on the executor. Checked exceptions complete the future exceptionally with the
+     * original exception as the cause.
+     */
+    static <T> CompletableFuture<T> supply(Callable<T> call, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.github.dockerjava.api.model.Info;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.GenericContainer;
+
+/**
+ * Splits the Docker host's CPUs and memory between the clusters expected to run on it, and derives server
+ * settings that fit each cluster's share. Settings are only ever raised above the {@link #BASELINE baseline}, a
+ * small share keeps the defaults. The host is asked once per JVM. See {@link EmbeddedPostgres.Builder#autoTune(int)}.
+ */
+final class AutoTuning {
+    private static final Logger LOG = LoggerFactory.getLogger(AutoTuning.class);
+
+    static final long MB = 1024L * 1024L;
+    static final long GB = 1024L * MB;
+
+    // Left to the JVM running the tests, the OS and Docker itself.
+    private static final double HOST_RESERVE = 0.25;
+    // Enough for the baseline shared_buffers and max_connections.
+    private static final long MIN_MEMORY = 512 * MB;
+
+    /**
+     * What a cluster runs with unless tuned: the server defaults, and <code>max_connections</code> as set by the builder.
+     */
+    static final Map<String, Long> BASELINE;
+
+    static {
+        final Map<String, Long> baseline = new LinkedHashMap<>();
+        baseline.put("max_connections", 300L);
+        baseline.put("shared_buffers", 128 * MB);
+        baseline.put("effective_cache_size", 4 * GB);
+        baseline.put("work_mem", 4 * MB);
+        baseline.put("maintenance_work_mem", 64 * MB);
+        baseline.put("max_worker_processes", 8L);
+        baseline.put("max_parallel_workers", 8L);
+        baseline.put("max_parallel_workers_per_gather", 2L);
+        baseline.put("max_parallel_maintenance_workers", 2L);
+        BASELINE = Collections.unmodifiableMap(baseline);
+    }
+
+    private static final ConcurrentMap<Integer, AutoTuning> TUNINGS = new ConcurrentHashMap<>();
+
+    private final Limits limits;
+    private final Map<String, String> serverConfig;
+
+    private AutoTuning(Limits limits, Map<String, String> serverConfig) {
+        this.limits = limits;
+        this.serverConfig = Collections.unmodifiableMap(serverConfig);
+    }
+
+    /**
+     * Tune for the Docker host, falling back to this JVM's host if Docker can not tell.
+     * @param expectedClusters clusters expected to run at the same time
+     * @return the tuning, the same one for every call with the same number of clusters
+     */
+    static AutoTuning forDockerHost(int expectedClusters) {
+        return TUNINGS.computeIfAbsent(expectedClusters, n -> {
+            final AutoTuning tuning = compute(Host.CPUS, Host.MEMORY, n);
+            LOG.info("Auto-tuned for {} clusters on {} CPUs and {} MB of memory: {}, {}",
+                    n, Host.CPUS, Host.MEMORY / MB, tuning.limits, tuning.serverConfig);
+            return tuning;
+        });
+    }
+
+    /**
+     * Resources of the Docker host, asked for on first use.
+     */
+    private static final class Host {
+        static final int CPUS;
+        static final long MEMORY;
+
+        static {
+            int cpus;
+            long memory;
+            try {
+                final Info info = DockerClientFactory.instance().getInfo();
+                cpus = Objects.requireNonNull(info.getNCPU());
+                memory = Objects.requireNonNull(info.getMemTotal());
+            } catch (RuntimeException e) {
+                LOG.debug("Docker did not report its resources, tuning for this host", e);
+                cpus = Runtime.getRuntime().availableProcessors();
+                memory = physicalMemory();
+            }
+            CPUS = cpus;
+            MEMORY = memory;
+        }
+
+        private Host() {
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long physicalMemory() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getTotalPhysicalMemorySize();
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    /**
+     * @param hostCpus CPUs of the Docker host
+     * @param hostMemory memory of the Docker host in bytes
+     * @param expectedClusters clusters expected to run at the same time
+     * @return limits and settings for one cluster
+     */
+    static AutoTuning compute(int hostCpus, long hostMemory, int expectedClusters) {
+        if (expectedClusters < 1) {
+            throw new IllegalArgumentException("Expect at least one cluster.");
+        }
+        final long memory = Math.max(MIN_MEMORY, (long) (hostMemory * (1 - HOST_RESERVE)) / expectedClusters);
+        final double cpus = Math.max(1.0, (double) hostCpus / expectedClusters);
+        final int workers = (int) cpus;
+
+        // The usual rules of thumb: a quarter of memory for shared buffers, the rest split between connections
+        // sorting at the same time, and /dev/shm large enough for parallel hash joins.
+        final long sharedBuffers = clamp(memory / 4, 32 * MB, 8 * GB);
+        final long maxConnections = clamp(memory / (16 * MB), BASELINE.get("max_connections"), 500);
+        final long workMem = clamp((memory - sharedBuffers) / (2 * maxConnections), 4 * MB, 256 * MB);
+        final long shm = clamp(memory / 8, 128 * MB, 2 * GB);
+
+        final Map<String, String> config = new LinkedHashMap<>();
+        raise(config, "max_connections", maxConnections);
+        raise(config, "shared_buffers", sharedBuffers);
+        raise(config, "effective_cache_size", memory * 3 / 4);
+        raise(config, "work_mem", workMem);
+        raise(config, "maintenance_work_mem", clamp(memory / 16, 64 * MB, 2 * GB));
+        raise(config, "max_worker_processes", workers);
+        raise(config, "max_parallel_workers", workers);
+        raise(config, "max_parallel_workers_per_gather", Math.min(4, workers / 2));
+        raise(config, "max_parallel_maintenance_workers", Math.min(4, workers / 2));
+        return new AutoTuning(new Limits(cpus, memory, shm), config);
+    }
+
+    /**
+     * Set <code>name</code> only if <code>value</code> is above the baseline.
+     */
+    private static void raise(Map<String, String> config, String name, long value) {
+        final long baseline = BASELINE.get(name);
+        if (value > baseline) {
+            config.put(name, baseline >= MB ? megabytes(value) : Long.toString(value));
+        }
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static String megabytes(long bytes) {
+        return bytes / MB + "MB";
+    }
+
+    Limits getLimits() {
+        return limits;
+    }
+
+    Map<String, String> getServerConfig() {
+        return serverConfig;
+    }
+
+    /**
+     * CPU, memory and <code>/dev/shm</code> limits of one container.
+     */
+    static final class Limits {
+        private final double cpus;
+        private final long memory;
+        private final long sharedMemory;
+
+        Limits(double cpus, long memory, long sharedMemory) {
+            this.cpus = cpus;
+            this.memory = memory;
+            this.sharedMemory = sharedMemory;
+        }
+
+        double getCpus() {
+            return cpus;
+        }
+
+        long getMemory() {
+            return memory;
+        }
+
+        long getSharedMemory() {
+            return sharedMemory;
+        }
+
+        void applyTo(GenericContainer<?> container) {
+            container.withSharedMemorySize(sharedMemory)
+                    .withCreateContainerCmdModifier(cmd -> Objects.requireNonNull(cmd.getHostConfig())
+                            .withNanoCPUs((long) (cpus * 1e9))
+                            .withMemory(memory)
+                            // No swap, a cluster that outgrows its share should fail rather than crawl.
+                            .withMemorySwap(memory));
+        }
+
+        void store(Properties properties) {
+            properties.setProperty("limits.cpus", Double.toString(cpus));
+            properties.setProperty("limits.memory", Long.toString(memory));
+            properties.setProperty("limits.shm", Long.toString(sharedMemory));
+        }
+
+        static Optional<Limits> load(Properties properties) {
+            if (properties.getProperty("limits.cpus") == null) {
+                return Optional.empty();
+            }
+            return Optional.of(new Limits(Double.parseDouble(properties.getProperty("limits.cpus")),
+                    Long.parseLong(properties.getProperty("limits.memory")),
+                    Long.parseLong(properties.getProperty("limits.shm"))));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Limits that = (Limits) o;
+            return Double.compare(cpus, that.cpus) == 0 && memory == that.memory && sharedMemory == that.sharedMemory;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(cpus, memory, sharedMemory);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("cpus=%.2f, memory=%s, shm=%s", cpus, megabytes(memory), megabytes(sharedMemory));
+        }
+    }
+}
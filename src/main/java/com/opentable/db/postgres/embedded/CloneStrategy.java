@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+/**
+ * How <code>CREATE DATABASE</code> copies the prepared template when a new database is handed out.
+ * Strategies the server does not know about are ignored, so the plain server default is used instead.
+ */
+public enum CloneStrategy {
+    /**
+     * Leave the choice to the server: WAL_LOG on PostgreSQL 15+, a checkpoint followed by a file copy before that.
+     */
+    DEFAULT,
+    /**
+     * <code>STRATEGY = WAL_LOG</code>: copies block by block through the WAL. Needs PostgreSQL 15+.
+     * Cheap for small templates, slower as the template grows.
+     */
+    WAL_LOG,
+    /**
+     * <code>STRATEGY = FILE_COPY</code>: checkpoints and copies the template's files. Needs PostgreSQL 15+
+     * (older servers always behave like this). Usually the faster choice for large templates.
+     */
+    FILE_COPY,
+    /**
+     * Like {@link #FILE_COPY}, additionally setting <code>file_copy_method = clone</code> on PostgreSQL 18+,
+     * so files are reflinked where the data directory's file system supports it.
+     */
+    FILE_COPY_CLONE;
+
+    static final int STRATEGY_MIN_VERSION = 15;
+    static final int FILE_COPY_METHOD_MIN_VERSION = 18;
+
+    /**
+     * @param serverMajorVersion major version of the server running the statement
+     * @return the clause to append to <code>CREATE DATABASE</code>, possibly empty
+     */
+    String createDatabaseClause(int serverMajorVersion) {
+        if (this == DEFAULT || serverMajorVersion < STRATEGY_MIN_VERSION) {
+            return "";
+        }
+        return this == WAL_LOG ? " STRATEGY = WAL_LOG" : " STRATEGY = FILE_COPY";
+    }
+
+    /**
+     * @param serverMajorVersion major version of the server running the statement
+     * @return whether the session should switch <code>file_copy_method</code> to <code>clone</code> first
+     */
+    boolean usesCloneCopyMethod(int serverMajorVersion) {
+        return this == FILE_COPY_CLONE && serverMajorVersion >= FILE_COPY_METHOD_MIN_VERSION;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Runs the PostgreSQL server behind an {@link EmbeddedPostgres}: a Docker container, see {@link ContainerBackend},
+ * or a process of a local installation, see {@link LocalProcessBackend}. Started by its constructor or factory,
+ * stopped by {@link #close()}.
+ */
+interface ClusterBackend extends Closeable {
+    /**
+     * @return JDBC URL of the database the cluster was started with
+     */
+    String getJdbcUrl();
+
+    String getHost();
+
+    int getPort();
+
+    String getUserName();
+
+    String getPassword();
+
+    String getDatabaseName();
+
+    /**
+     * Write a custom-format <code>pg_dump</code> of a database to a file on the host.
+     */
+    void dump(String userName, String dbName, Path target) throws IOException;
+
+    /**
+     * Restore a dump written by {@link #dump(String, String, Path)} into an existing, empty database.
+     */
+    void restore(String userName, String dbName, Path source) throws IOException;
+
+    /**
+     * @return whether the server is left running when closed, to be reused by later runs
+     */
+    default boolean isReusable() {
+        return false;
+    }
+
+    /**
+     * @return whether the server was left running by an earlier run
+     */
+    default boolean isReused() {
+        return false;
+    }
+
+    /**
+     * @return the id of the container running the server, empty if it does not run in one
+     */
+    default Optional<String> getContainerId() {
+        return Optional.empty();
+    }
+
+    static List<String> configOptions(Map<String, String> postgresConfig) {
+        final List<String> configOptions = new ArrayList<>();
+        for (final Map.Entry<String, String> config : postgresConfig.entrySet()) {
+            configOptions.add("-c");
+            configOptions.add(config.getKey() + "=" + config.getValue());
+        }
+        return configOptions;
+    }
+
+    static List<String> initOptions(Map<String, String> localeConfig) {
+        final List<String> localeOptions = new ArrayList<>();
+        for (final Map.Entry<String, String> config : localeConfig.entrySet()) {
+            localeOptions.add("--" + config.getKey());
+            localeOptions.add(config.getValue());
+        }
+        return localeOptions;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static com.opentable.db.postgres.embedded.EmbeddedPostgres.CONFIG_LABEL;
+import static com.opentable.db.postgres.embedded.EmbeddedPostgres.DATA_DIRECTORY;
+import static com.opentable.db.postgres.embedded.EmbeddedPostgres.POSTGRES;
+import static com.opentable.db.postgres.embedded.EmbeddedPostgres.SNAPSHOT_DATA_DIRECTORY;
+import static org.testcontainers.containers.PostgreSQLContainer.POSTGRESQL_PORT;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import com.github.dockerjava.api.command.InspectContainerResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.containers.Container;
+import org.testcontainers.containers.Network;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.containers.output.Slf4jLogConsumer;
+import org.testcontainers.utility.DockerImageName;
+import org.testcontainers.utility.MountableFile;
+import org.testcontainers.utility.TestcontainersConfiguration;
+
+/**
+ * The server in a Docker container, started through Testcontainers.
+ */
+@SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+final class ContainerBackend implements ClusterBackend {
+    // Container output keeps going to the logger it always went to.
+    private static final Logger LOG = LoggerFactory.getLogger(EmbeddedPostgres.class);
+
+    private final TimedContainer postgreDBContainer;
+    private final boolean reusable;
+
+    ContainerBackend(Map<String, String> postgresConfig,
+                     Map<String, String> localeConfig,
+                     Map<String, BindMount> bindMounts,
+                     Optional<Network> network,
+                     Optional<String> networkAlias,
+                     DockerImageName image,
+                     Duration pgStartupWait,
+                     String databaseName,
+                     Optional<String> tmpfsSize,
+                     Optional<AutoTuning.Limits> limits,
+                     Optional<String> reuseKey,
+                     boolean snapshotLayout
+    ) {
+        LOG.trace("Starting containers with image {}, pgConfig {}, localeConfig {}, bindMounts {}, pgStartupWait {}, dbName {} ", image,
+                postgresConfig, localeConfig, bindMounts, pgStartupWait, databaseName);
+        image = image.asCompatibleSubstituteFor(POSTGRES);
+        this.postgreDBContainer = new TimedContainer(image)
+                .withDatabaseName(databaseName)
+                .withUsername(POSTGRES)
+                .withPassword(POSTGRES)
+                .waitingFor(new JdbcWaitStrategy(databaseName, POSTGRES, POSTGRES))
+                .withStartupTimeout(pgStartupWait)
+                .withLogConsumer(new Slf4jLogConsumer(LOG))
+                // https://github.com/docker-library/docs/blob/master/postgres/README.md#postgres_initdb_args
+                .withEnv("POSTGRES_INITDB_ARGS", String.join(" ", ClusterBackend.initOptions(localeConfig)))
+                .withEnv("POSTGRES_HOST_AUTH_METHOD", "trust");
+        final List<String> cmd = new ArrayList<>(Collections.singletonList(POSTGRES));
+        cmd.addAll(ClusterBackend.configOptions(postgresConfig));
+        postgreDBContainer.setCommand(cmd.toArray(new String[0]));
+        processBindMounts(postgreDBContainer, bindMounts);
+        network.ifPresent(postgreDBContainer::withNetwork);
+        networkAlias.ifPresent(postgreDBContainer::withNetworkAliases);
+        tmpfsSize.ifPresent(size -> postgreDBContainer
+                .withEnv("PGDATA", DATA_DIRECTORY)
+                .withTmpFs(Collections.singletonMap(DATA_DIRECTORY, "rw,size=" + size)));
+        if (snapshotLayout) {
+            postgreDBContainer.withEnv("PGDATA", SNAPSHOT_DATA_DIRECTORY);
+        }
+        limits.ifPresent(l -> l.applyTo(postgreDBContainer));
+        reuseKey.ifPresent(key -> postgreDBContainer
+                .withReuse(true)
+                .withLabel(CONFIG_LABEL, key));
+        this.reusable = reuseKey.isPresent() && TestcontainersConfiguration.getInstance().environmentSupportsReuse();
+        final JfrEvents.ContainerStart event = new JfrEvents.ContainerStart();
+        event.begin();
+        try {
+            postgreDBContainer.start();
+        } catch (RuntimeException e) {
+            event.failure = JfrEvents.message(e);
+            throw e;
+        } finally {
+            event.image = image.asCanonicalNameString();
+            event.commit();
+        }
+    }
+
+    /**
+     * Records the readiness wait, which the container runs as the last step of starting.
+     */
+    private static final class TimedContainer extends PostgreSQLContainer<TimedContainer> {
+        private final String imageName;
+        private volatile boolean reused;
+
+        TimedContainer(DockerImageName image) {
+            super(image);
+            this.imageName = image.asCanonicalNameString();
+        }
+
+        @Override
+        protected void waitUntilContainerStarted() {
+            final JfrEvents.ContainerReady event = new JfrEvents.ContainerReady();
+            event.begin();
+            try {
+                super.waitUntilContainerStarted();
+            } finally {
+                event.image = imageName;
+                event.commit();
+            }
+        }
+
+        @Override
+        protected void containerIsStarted(InspectContainerResponse containerInfo, boolean reused) {
+            this.reused = reused;
+            super.containerIsStarted(containerInfo, reused);
+        }
+    }
+
+    private void processBindMounts(PostgreSQLContainer<?> postgreDBContainer, Map<String, BindMount> bindMounts) {
+        bindMounts.values().stream()
+                .filter(f -> new File(f.getLocalFile()).exists())
+                .forEach(f -> postgreDBContainer.addFileSystemBind(f.getLocalFile(),
+                        f.getRemoteFile(), f.getBindMode()));
+    }
+
+    @Override
+    public String getJdbcUrl() {
+        return postgreDBContainer.getJdbcUrl();
+    }
+
+    @Override
+    public String getHost() {
+        return postgreDBContainer.getContainerIpAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return postgreDBContainer.getMappedPort(POSTGRESQL_PORT);
+    }
+
+    @Override
+    public String getUserName() {
+        return postgreDBContainer.getUsername();
+    }
+
+    @Override
+    public String getPassword() {
+        return postgreDBContainer.getPassword();
+    }
+
+    @Override
+    public String getDatabaseName() {
+        return postgreDBContainer.getDatabaseName();
+    }
+
+    @Override
+    public boolean isReusable() {
+        return reusable;
+    }
+
+    @Override
+    public boolean isReused() {
+        return postgreDBContainer.reused;
+    }
+
+    @Override
+    public Optional<String> getContainerId() {
+        return Optional.of(postgreDBContainer.getContainerId());
+    }
+
+    @Override
+    public void dump(String userName, String dbName, Path target) throws IOException {
+        final String containerPath = "/tmp/" + dbName + ".dump";
+        exec("pg_dump", "-U", userName, "-Fc", "-f", containerPath, dbName);
+        try {
+            postgreDBContainer.copyFileFromContainer(containerPath, target.toString());
+        } finally {
+            exec("rm", "-f", containerPath);
+        }
+    }
+
+    @Override
+    public void restore(String userName, String dbName, Path source) throws IOException {
+        final String containerPath = "/tmp/" + dbName + ".dump";
+        postgreDBContainer.copyFileToContainer(MountableFile.forHostPath(source), containerPath);
+        try {
+            exec("pg_restore", "-U", userName, "--exit-on-error", "-d", dbName, containerPath);
+        } finally {
+            exec("rm", "-f", containerPath);
+        }
+    }
+
+    private void exec(String... command) throws IOException {
+        final Container.ExecResult result;
+        try {
+            result = postgreDBContainer.execInContainer(command);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        if (result.getExitCode() != 0) {
+            throw new IOException(String.format("'%s' failed with exit code %d: %s", String.join(" ", command), result.getExitCode(), result.getStderr()));
+        }
+    }
+
+    @Override
+    public void close() {
+        final JfrEvents.ContainerStop event = new JfrEvents.ContainerStop();
+        event.begin();
+        if (reusable) {
+            LOG.info("Leaving reusable container {} running", postgreDBContainer.getContainerId());
+        } else {
+            postgreDBContainer.close();
+        }
+        event.image = postgreDBContainer.imageName;
+        event.commit();
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.ds.PGSimpleDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.opentable.db.postgres.embedded.EmbeddedPostgres.Builder;
+
+/**
+ * Client side of the {@link PreparedDbDaemon}: one connection per template, starting the daemon if none is running.
+ */
+final class DaemonClient implements PreparedDbProvider.Pipeline {
+    private static final Logger LOG = LoggerFactory.getLogger(DaemonClient.class);
+
+    private static final String LOCK_FILE = "daemon.lock";
+    private static final Duration START_TIMEOUT = Duration.ofSeconds(60);
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final Writer out;
+    private final AtomicLong live = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private DaemonClient(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+    }
+
+    static DaemonClient connect(Path directory, Duration idleTimeout, DatabasePreparer preparer, Builder builder,
+                                PreparedDbProvider.Options options) throws IOException, SQLException {
+        final DaemonClient client = new DaemonClient(connectOrStart(directory, idleTimeout));
+        try {
+            client.acquireTemplate(preparer, builder, options);
+            return client;
+        } catch (IOException | SQLException | RuntimeException e) {
+            client.close();
+            throw e;
+        }
+    }
+
+    private void acquireTemplate(DatabasePreparer preparer, Builder builder, PreparedDbProvider.Options options) throws IOException, SQLException {
+        final Properties config = new Properties();
+        builder.store(config);
+        options.store(config);
+        final String fingerprint = preparer.getFingerprint().orElseThrow(IllegalStateException::new);
+        PreparedDbDaemon.send(out, "TEMPLATE", fingerprint, PreparedDbDaemon.encode(config));
+        Exception failure = null;
+        while (true) {
+            final String[] reply = read();
+            switch (reply[0]) {
+                case "PREPARE":
+                    LOG.info("Preparing shared template {}", fingerprint);
+                    final PGSimpleDataSource template = new PGSimpleDataSource();
+                    template.setUrl(reply[1]);
+                    template.setUser(reply[2]);
+                    template.setPassword(reply[3]);
+                    try {
+                        preparer.prepare(template);
+                        PreparedDbDaemon.send(out, "PREPARED");
+                    } catch (SQLException | RuntimeException e) {
+                        failure = e;
+                        PreparedDbDaemon.send(out, "FAILED", PreparedDbDaemon.message(e));
+                    }
+                    break;
+                case "READY":
+                    return;
+                case "ERROR":
+                    if (failure instanceof SQLException) {
+                        throw (SQLException) failure;
+                    }
+                    if (failure != null) {
+                        throw (RuntimeException) failure;
+                    }
+                    throw new SQLException("Shared daemon could not provide the template: " + reply[1]);
+                default:
+                    throw new IOException("Unexpected reply from shared daemon: " + String.join(" ", reply));
+            }
+        }
+    }
+
+    @Override
+    public synchronized PreparedDbProvider.DbInfo getNextDb() throws SQLException {
+        try {
+            final long startNanos = System.nanoTime();
+            final JfrEvents.DatabaseWait event = new JfrEvents.DatabaseWait();
+            event.begin();
+            PreparedDbDaemon.send(out, "CREATE");
+            final String[] reply = read();
+            if (!"DB".equals(reply[0])) {
+                throw new SQLException("Shared daemon could not create a database: " + reply[reply.length - 1]);
+            }
+            live.incrementAndGet();
+            event.database = reply[6];
+            event.readyDatabases = -1;
+            event.commit();
+            EmbeddedPostgresListeners.fire(l -> l.databaseAcquired(EmbeddedPostgresListeners.since(startNanos), -1));
+            return PreparedDbProvider.DbInfo.ok(reply[1], reply[2], reply[3], reply[4], Integer.parseInt(reply[5]), reply[6]);
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    @Override
+    public synchronized void release(String dbName) {
+        try {
+            PreparedDbDaemon.send(out, "DROP", dbName);
+            read();
+            live.decrementAndGet();
+            dropped.incrementAndGet();
+        } catch (IOException e) {
+            LOG.warn("Could not release database {} to the shared daemon", dbName, e);
+        }
+    }
+
+    @Override
+    public long getLiveCount() {
+        return live.get();
+    }
+
+    /**
+     * @return always 0, the daemon drops released databases on its own
+     */
+    @Override
+    public long getPendingDropCount() {
+        return 0;
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOG.debug("Could not close connection to the shared daemon", e);
+        }
+    }
+
+    private String[] read() throws IOException {
+        final String line = in.readLine();
+        if (line == null) {
+            throw new IOException("Shared daemon closed the connection");
+        }
+        return line.split("\t", -1);
+    }
+
+    /**
+     * Connect to the daemon in the given directory, starting it if needed. The lock file keeps concurrently
+     * starting JVMs from launching more than one daemon.
+     */
+    private static Socket connectOrStart(Path directory, Duration idleTimeout) throws IOException {
+        final Optional<Socket> running = tryConnect(directory);
+        if (running.isPresent()) {
+            return running.get();
+        }
+        synchronized (DaemonClient.class) {
+            Files.createDirectories(directory);
+            try (FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock ignored = channel.lock()) {
+                Optional<Socket> socket = tryConnect(directory);
+                if (socket.isPresent()) {
+                    return socket.get();
+                }
+                start(directory, idleTimeout);
+                final long deadline = System.nanoTime() + START_TIMEOUT.toNanos();
+                while (System.nanoTime() < deadline) {
+                    Thread.sleep(100);
+                    socket = tryConnect(directory);
+                    if (socket.isPresent()) {
+                        return socket.get();
+                    }
+                }
+                throw new IOException("Shared daemon did not start within " + START_TIMEOUT + ", see " + directory.resolve(PreparedDbDaemon.LOG_FILE));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private static void start(Path directory, Duration idleTimeout) throws IOException {
+        LOG.info("Starting shared daemon in {}", directory);
+        final String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), PreparedDbDaemon.class.getName(),
+                directory.toString(), idleTimeout.toString())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(directory.resolve(PreparedDbDaemon.LOG_FILE).toFile()))
+                .start();
+    }
+
+    private static Optional<Socket> tryConnect(Path directory) {
+        final Path portFile = directory.resolve(PreparedDbDaemon.PORT_FILE);
+        if (!Files.isRegularFile(portFile)) {
+            return Optional.empty();
+        }
+        final Socket socket = new Socket();
+        try {
+            final int port = Integer.parseInt(new String(Files.readAllBytes(portFile), StandardCharsets.UTF_8).trim());
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            final Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            PreparedDbDaemon.send(out, "PING");
+            final String pong = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+            if (!("PONG\t" + PreparedDbDaemon.PROTOCOL_VERSION).equals(pong)) {
+                throw new IOException("Unexpected reply " + pong);
+            }
+            socket.setSoTimeout(0);
+            return Optional.of(socket);
+        } catch (IOException | NumberFormatException e) {
+            LOG.debug("No shared daemon reachable through {}", portFile, e);
+            try {
+                socket.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * A database handed out by {@link PreparedDbProvider#leaseDatabase()}.
+ * Closing the lease hands the database back; it is dropped in the background,
+ * so it must not be used any more once closed.
+ */
+public final class DatabaseLease implements AutoCloseable {
+    private final ConnectionInfo connectionInfo;
+    private final String databaseName;
+    private final Consumer<String> releaser;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    DatabaseLease(ConnectionInfo connectionInfo, String databaseName, Consumer<String> releaser) {
+        this.connectionInfo = connectionInfo;
+        this.databaseName = databaseName;
+        this.releaser = releaser;
+    }
+
+    public ConnectionInfo getConnectionInfo() {
+        return connectionInfo;
+    }
+
+    public String getDatabaseName() {
+        return databaseName;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Release the database. Any backends still connected to it are terminated
+     * before it is dropped. Calling this more than once has no effect.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            releaser.accept(databaseName);
+        }
+    }
+}
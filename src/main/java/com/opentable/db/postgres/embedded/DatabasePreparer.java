@@ -14,6 +14,7 @@
 package com.opentable.db.postgres.embedded;
 
 import java.sql.SQLException;
+import java.util.Optional;
 
 import javax.sql.DataSource;
 
@@ -24,9 +25,21 @@ import javax.sql.DataSource;
  *
  * The preparation steps are expected to be deterministic.
  * For efficiency reasons, databases created by DatabasePreparer
- * instances may be pooled, using {@link Object#hashCode()} and
+ * instances may be pooled, using {@link #getFingerprint()} or, if
+ * there is none, {@link Object#hashCode()} and
  * {@link Object#equals(Object)} to determine equivalence.
  */
 public interface DatabasePreparer {
     void prepare(DataSource ds) throws SQLException;
+
+    /**
+     * A stable digest of everything that influences the result of {@link #prepare(DataSource)}, identical
+     * across JVM runs as long as the prepared schema would be identical. Preparers that return a fingerprint
+     * may have their prepared template restored from a cache instead of being invoked.
+     *
+     * @return the fingerprint, or empty if the preparer can not describe its result (the default)
+     */
+    default Optional<String> getFingerprint() {
+        return Optional.empty();
+    }
 }
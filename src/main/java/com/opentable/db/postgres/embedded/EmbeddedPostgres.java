@@ -13,23 +13,28 @@
  */
 package com.opentable.db.postgres.embedded;
 
-
-import static org.testcontainers.containers.PostgreSQLContainer.POSTGRESQL_PORT;
-
 import java.io.Closeable;
-import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.time.Duration;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Properties;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 
 import javax.sql.DataSource;
 
@@ -38,8 +43,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testcontainers.containers.BindMode;
 import org.testcontainers.containers.Network;
-import org.testcontainers.containers.PostgreSQLContainer;
-import org.testcontainers.containers.output.Slf4jLogConsumer;
 import org.testcontainers.utility.DockerImageName;
 
 
@@ -65,92 +68,129 @@ public class EmbeddedPostgres implements Closeable {
     static final String DOCKER_DEFAULT_TAG = "17-alpine";
     // Note you can override any of these defaults explicitly in the builder.
 
-    private final PostgreSQLContainer<?> postgreDBContainer;
+    // The data directory, set explicitly since images differ in their default.
+    static final String DATA_DIRECTORY = "/var/lib/postgresql/data";
+    static final String DEFAULT_TMPFS_SIZE = "4g";
+    // Outside the image's data volume, so that committing the container includes the data.
+    static final String SNAPSHOT_DATA_DIRECTORY = "/var/lib/postgresql/snapshot";
+
+    // Labels reusable containers with the hash of their configuration.
+    static final String CONFIG_LABEL = "com.opentable.db.postgres.config";
+    // Prefix of the application name of the connection marking a JVM's use of a reused cluster.
+    static final String RUN_APPLICATION_NAME = "pge-run-";
+
+    private final ClusterBackend backend;
 
     private final UUID instanceId = UUID.randomUUID();
+    private final Connection runMarker;
+    private final int connectionPoolSize;
+    private final ConcurrentMap<List<Object>, DataSource> dataSources = new ConcurrentHashMap<>();
 
-    EmbeddedPostgres(Map<String, String> postgresConfig,
-                     Map<String, String> localeConfig,
-                     Map<String, BindMount> bindMounts,
-                     Optional<Network> network,
-                     Optional<String> networkAlias,
-                     DockerImageName image,
-                     Duration pgStartupWait,
-                     String databaseName
-    ) throws IOException {
-        LOG.trace("Starting containers with image {}, pgConfig {}, localeConfig {}, bindMounts {}, pgStartupWait {}, dbName {} ", image,
-                postgresConfig, localeConfig, bindMounts, pgStartupWait, databaseName);
-        image = image.asCompatibleSubstituteFor(POSTGRES);
-        this.postgreDBContainer = new PostgreSQLContainer<>(image)
-                .withDatabaseName(databaseName)
-                .withUsername(POSTGRES)
-                .withPassword(POSTGRES)
-                .withStartupTimeout(pgStartupWait)
-                .withLogConsumer(new Slf4jLogConsumer(LOG))
-                // https://github.com/docker-library/docs/blob/master/postgres/README.md#postgres_initdb_args
-                .withEnv("POSTGRES_INITDB_ARGS", String.join(" ", createInitOptions(localeConfig)))
-                .withEnv("POSTGRES_HOST_AUTH_METHOD", "trust");
-        final List<String> cmd = new ArrayList<>(Collections.singletonList(POSTGRES));
-        cmd.addAll(createConfigOptions(postgresConfig));
-        postgreDBContainer.setCommand(cmd.toArray(new String[0]));
-        processBindMounts(postgreDBContainer, bindMounts);
-        network.ifPresent(postgreDBContainer::withNetwork);
-        networkAlias.ifPresent(postgreDBContainer::withNetworkAliases);
-        postgreDBContainer.start();
+    EmbeddedPostgres(ClusterBackend backend, int connectionPoolSize) throws IOException {
+        this.backend = backend;
+        this.connectionPoolSize = connectionPoolSize;
+        try {
+            this.runMarker = backend.isReusable() ? openRunMarker() : null;
+        } catch (IOException e) {
+            backend.close();
+            throw e;
+        }
     }
 
-    private void processBindMounts(PostgreSQLContainer<?> postgreDBContainer, Map<String, BindMount> bindMounts) {
-        bindMounts.values().stream()
-                .filter(f -> new File(f.getLocalFile()).exists())
-                .forEach(f -> postgreDBContainer.addFileSystemBind(f.getLocalFile(),
-                        f.getRemoteFile(), f.getBindMode()));
+    /**
+     * Hold a connection for as long as this JVM uses a reusable cluster, so later runs can tell which databases
+     * are still in use.
+     */
+    private Connection openRunMarker() throws IOException {
+        try {
+            return newDataSource(getUserName(), backend.getDatabaseName(),
+                    Collections.singletonMap("ApplicationName", RUN_APPLICATION_NAME + getRunId())).getConnection();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
     }
 
-    private List<String> createConfigOptions(final Map<String, String> postgresConfig) {
-        final List<String> configOptions = new ArrayList<>();
-        for (final Map.Entry<String, String> config : postgresConfig.entrySet()) {
-            configOptions.add("-c");
-            configOptions.add(config.getKey() + "=" + config.getValue());
-        }
-        return configOptions;
+    /**
+     * @return whether the cluster is kept running when closed, to be reused by later runs
+     */
+    boolean isReusable() {
+        return backend.isReusable();
     }
 
-    private List<String> createInitOptions(final Map<String, String> localeConfig) {
-        final List<String> localeOptions = new ArrayList<>();
-        for (final Map.Entry<String, String> config : localeConfig.entrySet()) {
-            localeOptions.add("--" + config.getKey());
-            localeOptions.add(config.getValue());
-        }
-        return localeOptions;
+    /**
+     * @return whether the cluster was left running by an earlier run and may hold its databases
+     */
+    boolean isReused() {
+        return backend.isReused();
+    }
+
+    /**
+     * @return the id of the cluster's container, empty for a {@link Builder#useLocalInstallation(Path) local installation}
+     */
+    Optional<String> getContainerId() {
+        return backend.getContainerId();
+    }
+
+    /**
+     * @return a short id of this cluster instance, for naming the databases it creates
+     */
+    String getRunId() {
+        return instanceId.toString().substring(0, 8);
     }
 
     public DataSource getTemplateDatabase() {
-        return getDatabase(postgreDBContainer.getUsername(), "template1");
+        return getTemplateDatabase(Collections.emptyMap());
     }
 
+    /**
+     * Data source for <code>template1</code>. Never pooled, as databases can not be created while their template
+     * has connections.
+     * @param properties driver properties
+     * @return the data source
+     */
     public DataSource getTemplateDatabase(Map<String, String> properties) {
-        return getDatabase(postgreDBContainer.getUsername(), "template1", properties);
+        return newDataSource(backend.getUserName(), "template1", properties);
     }
 
     public DataSource getPostgresDatabase() {
-        return getDatabase(postgreDBContainer.getUsername(), postgreDBContainer.getDatabaseName());
+        return getDatabase(backend.getUserName(), backend.getDatabaseName());
     }
 
     public DataSource getPostgresDatabase(Map<String, String> properties) {
-        return getDatabase(postgreDBContainer.getUsername(), postgreDBContainer.getDatabaseName(), properties);
+        return getDatabase(backend.getUserName(), backend.getDatabaseName(), properties);
     }
 
     public DataSource getDatabase(String userName, String dbName) {
         return getDatabase(userName, dbName, Collections.emptyMap());
     }
 
+    /**
+     * Data source for a database in this cluster. Repeated calls with the same arguments return the same instance,
+     * a {@link PooledDataSource} if the builder asked for {@link Builder#setConnectionPoolSize(int) pooling}.
+     * Do not use pooled data sources for databases that serve as templates.
+     * @param userName user to connect as
+     * @param dbName database to connect to
+     * @param properties driver properties
+     * @return the data source
+     */
     public DataSource getDatabase(String userName, String dbName, Map<String, String> properties) {
+        return dataSources.computeIfAbsent(Arrays.asList(userName, dbName, new HashMap<>(properties)),
+                key -> {
+                    final DataSource ds = newDataSource(userName, dbName, properties);
+                    return connectionPoolSize > 0 ? new PooledDataSource(ds, connectionPoolSize) : ds;
+                });
+    }
+
+    /**
+     * A new, unpooled data source, for databases that must not be held open such as templates.
+     */
+    DataSource newDataSource(String userName, String dbName, Map<String, String> properties) {
         final PGSimpleDataSource ds = new PGSimpleDataSource();
 
-        ds.setURL(postgreDBContainer.getJdbcUrl());
+        ds.setURL(backend.getJdbcUrl());
         ds.setDatabaseName(dbName);
         ds.setUser(userName);
-        ds.setPassword(postgreDBContainer.getPassword());
+        ds.setPassword(backend.getPassword());
 
         properties.forEach((propertyKey, propertyValue) -> {
             try {
@@ -169,22 +209,55 @@ public class EmbeddedPostgres implements Closeable {
      */
     public String getJdbcUrl(String dbName) {
         try {
-            return JdbcUrlUtils.replaceDatabase(postgreDBContainer.getJdbcUrl(), dbName);
+            return JdbcUrlUtils.replaceDatabase(backend.getJdbcUrl(), dbName);
         } catch (URISyntaxException e) {
             return null;
         }
      }
 
      public String getHost() {
-        return postgreDBContainer.getContainerIpAddress();
+        return backend.getHost();
      }
     public int getPort() {
-        return postgreDBContainer.getMappedPort(POSTGRESQL_PORT);
+        return backend.getPort();
+    }
+
+    /**
+     * Write a custom-format <code>pg_dump</code> of a database to a file on the host.
+     * @param dbName database to dump
+     * @param target file to write
+     * @throws IOException if the dump fails
+     */
+    void dumpDatabase(String dbName, Path target) throws IOException {
+        backend.dump(getUserName(), dbName, target);
+    }
+
+    /**
+     * Restore a dump written by {@link #dumpDatabase(String, Path)} into an existing, empty database.
+     * @param dbName database to restore into
+     * @param source dump file on the host
+     * @throws IOException if the restore fails
+     */
+    void restoreDatabase(String dbName, Path source) throws IOException {
+        backend.restore(getUserName(), dbName, source);
     }
 
     @Override
     public void close() throws IOException {
-        postgreDBContainer.close();
+        for (DataSource ds : dataSources.values()) {
+            if (ds instanceof PooledDataSource) {
+                ((PooledDataSource) ds).close();
+            }
+        }
+        dataSources.clear();
+        if (runMarker != null) {
+            try {
+                runMarker.close();
+            } catch (SQLException e) {
+                LOG.debug("Could not close the run marker connection", e);
+            }
+        }
+        backend.close();
     }
 
     public static EmbeddedPostgres start() throws IOException {
@@ -196,11 +269,11 @@ public class EmbeddedPostgres implements Closeable {
     }
 
     public String getUserName() {
-        return postgreDBContainer.getUsername();
+        return backend.getUserName();
     }
 
     public String getPassword() {
-        return postgreDBContainer.getPassword();
+        return backend.getPassword();
     }
 
     @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
@@ -215,6 +288,13 @@ public class EmbeddedPostgres implements Closeable {
         private DockerImageName image = getDefaultImage();
         private String databaseName = POSTGRES;
         private Optional<String> networkAlias = Optional.empty();
+        private int connectionPoolSize;
+        private Optional<String> tmpfsSize = Optional.empty();
+        private Optional<AutoTuning.Limits> limits = Optional.empty();
+        private boolean reuse;
+        private boolean snapshotLayout;
+        private Optional<Path> localInstallation = Optional.empty();
+        private boolean initdbCache = true;
 
         // See comments at top for the logic.
         DockerImageName getDefaultImage() {
@@ -314,6 +394,165 @@ public class EmbeddedPostgres implements Closeable {
             return this;
         }
 
+        /**
+         * Keep the data directory, and with it the WAL, in memory on a tmpfs mount instead of the container's
+         * filesystem. Data and WAL together must fit, see {@link #usePerformanceProfile(String)}.
+         * @param size size cap in Docker's notation, e.g. <code>512m</code> or <code>2g</code>; null for no tmpfs
+         * @return builder
+         */
+        public Builder setDataDirectoryTmpfs(String size) {
+            this.tmpfsSize = Optional.ofNullable(size);
+            return this;
+        }
+
+        /**
+         * See {@link #usePerformanceProfile(String)}, with a tmpfs of at most <code>4g</code>.
+         * @return builder
+         */
+        public Builder usePerformanceProfile() {
+            return usePerformanceProfile(DEFAULT_TMPFS_SIZE);
+        }
+
+        /**
+         * Trade all durability for speed, for write-heavy tests: the data directory lives on a
+         * {@link #setDataDirectoryTmpfs(String) tmpfs}, WAL is kept to the minimum with no full page images and
+         * checkpoints are rare. Autovacuum is off, test data does not live long enough to need it and its workers
+         * connecting to a template make cloning fail. Memory used by the tmpfs counts against Docker's.
+         * @param tmpfsSize size cap of the tmpfs, leave room for up to 2GB of WAL on top of the data
+         * @return builder
+         */
+        public Builder usePerformanceProfile(String tmpfsSize) {
+            setDataDirectoryTmpfs(Objects.requireNonNull(tmpfsSize));
+            config.put("full_page_writes", "off");
+            config.put("wal_level", "minimal");
+            config.put("max_wal_senders", "0");
+            config.put("max_wal_size", "2GB");
+            config.put("checkpoint_timeout", "30min");
+            config.put("autovacuum", "off");
+            return this;
+        }
+
+        /**
+         * Size the cluster for its share of the Docker host: CPUs and memory, less a quarter left to the host, are
+         * split between <code>expectedClusters</code>. The container is limited to that share, with a
+         * <code>/dev/shm</code> large enough for parallel queries, and <code>max_connections</code>,
+         * <code>shared_buffers</code>, <code>work_mem</code> and the parallel worker settings are derived from it,
+         * but only ever raised above their defaults. The host is asked once per JVM, the chosen values are logged at
+         * INFO. Settings made after this call override the derived ones. The memory limit includes any
+         * {@link #setDataDirectoryTmpfs(String) tmpfs}.
+         * @param expectedClusters clusters expected to run on the Docker host at the same time, e.g. distinct
+         *                         provider configurations times parallel test JVMs
+         * @return builder
+         */
+        public Builder autoTune(int expectedClusters) {
+            final AutoTuning tuning = AutoTuning.forDockerHost(expectedClusters);
+            config.putAll(tuning.getServerConfig());
+            this.limits = Optional.of(tuning.getLimits());
+            return this;
+        }
+
+        /**
+         * Keep the container running when the cluster is closed, and reuse it in later runs with the same
+         * configuration instead of starting a new one. Needs <code>testcontainers.reuse.enable=true</code> in
+         * <code>~/.testcontainers.properties</code>, otherwise the container is started and stopped as usual.
+         * Meant for local development, the container is never removed automatically.
+         * <p>
+         * {@link PreparedDbProvider} keeps templates of preparers with a {@link DatabasePreparer#getFingerprint()
+         * fingerprint} in a reused cluster, and drops databases left behind by earlier runs.
+         * @param reuse whether to reuse the container
+         * @return builder
+         */
+        public Builder setReuse(boolean reuse) {
+            this.reuse = reuse;
+            return this;
+        }
+
+        /**
+         * Run the server as a child process from the binaries of a local PostgreSQL installation instead of in a
+         * Docker container. Each cluster gets a fresh data directory, copied from a cached <code>initdb</code> run
+         * (see {@link #setInitdbCache(boolean)}), listens on a free port
+         * of <code>127.0.0.1</code> and keeps its Unix socket in a private temporary directory, so parallel builds
+         * do not collide. Image, bind mount, network, tmpfs and resource limit settings only apply to containers and
+         * are ignored; {@link #setReuse(boolean) reuse} can not be combined with it. PostgreSQL refuses to run as root.
+         * @param binDirectory directory holding <code>initdb</code>, <code>pg_ctl</code>, <code>postgres</code>,
+         *                     <code>pg_dump</code> and <code>pg_restore</code>, e.g. the output of
+         *                     <code>pg_config --bindir</code>
+         * @return builder
+         */
+        public Builder useLocalInstallation(Path binDirectory) {
+            this.localInstallation = Optional.of(binDirectory);
+            return this;
+        }
+
+        /**
+         * With a {@link #useLocalInstallation(Path) local installation}, whether to run <code>initdb</code> once per
+         * installation and locale settings and copy its data directory for each cluster, as a reflink where the
+         * filesystem supports it. The data directories are kept under <code>~/.cache/otj-pg-embedded/initdb</code>
+         * across runs. Enabled by default.
+         * @param initdbCache whether to cache data directories
+         * @return builder
+         */
+        public Builder setInitdbCache(boolean initdbCache) {
+            this.initdbCache = initdbCache;
+            return this;
+        }
+
+        /**
+         * Keep the data directory out of the image's data volume, so that {@link ImageSnapshot} can commit it.
+         * @return builder
+         */
+        Builder useSnapshotLayout() {
+            this.snapshotLayout = true;
+            return this;
+        }
+
+        /**
+         * @return whether {@link #useSnapshotLayout()} can work, which needs the data on the container's filesystem
+         */
+        boolean supportsSnapshot() {
+            return !tmpfsSize.isPresent() && !localInstallation.isPresent();
+        }
+
+        /**
+         * @return a builder with the same configuration
+         */
+        Builder copy() {
+            final Builder copy = new Builder();
+            copy.config.clear();
+            copy.config.putAll(config);
+            copy.localeConfig.putAll(localeConfig);
+            copy.bindMounts.putAll(bindMounts);
+            copy.network = network;
+            copy.pgStartupWait = pgStartupWait;
+            copy.image = image;
+            copy.databaseName = databaseName;
+            copy.networkAlias = networkAlias;
+            copy.connectionPoolSize = connectionPoolSize;
+            copy.tmpfsSize = tmpfsSize;
+            copy.limits = limits;
+            copy.reuse = reuse;
+            copy.snapshotLayout = snapshotLayout;
+            copy.localInstallation = localInstallation;
+            copy.initdbCache = initdbCache;
+            return copy;
+        }
+
+        /**
+         * Pool connections of the data sources returned by {@link EmbeddedPostgres#getDatabase(String, String, Map)}
+         * and friends, see {@link PooledDataSource}. Pooled connections stay open until the cluster is closed.
+         * Not part of the cluster's identity, clusters shared between builders differing only in this setting
+         * use the first one's.
+         * @param connectionPoolSize maximum connections per data source, 0 (the default) to not pool
+         * @return builder
+         */
+        public Builder setConnectionPoolSize(int connectionPoolSize) {
+            if (connectionPoolSize < 0) {
+                throw new IllegalArgumentException("Pool size must not be negative.");
+            }
+            this.connectionPoolSize = connectionPoolSize;
+            return this;
+        }
+
         /**
          * Set up arguments to initDB process
          * @param key key
@@ -349,8 +588,114 @@ public class EmbeddedPostgres implements Closeable {
             return image;
         }
 
+        /**
+         * @return a description of everything in this configuration that affects the contents of a cluster,
+         * stable across JVM runs
+         */
+        String configFingerprint() {
+            return "image=" + image.asCanonicalNameString() +
+                    ";config=" + new TreeMap<>(config) +
+                    ";locale=" + new TreeMap<>(localeConfig) +
+                    ";bindMounts=" + new TreeMap<>(bindMounts) +
+                    ";databaseName=" + databaseName +
+                    localInstallation.map(bin -> ";local=" + bin.toAbsolutePath()).orElse("");
+        }
+
+        /**
+         * @return whether this configuration can be recreated in another process by {@link #store(Properties)}
+         */
+        boolean isPortable() {
+            return !network.isPresent() && !networkAlias.isPresent();
+        }
+
+        /**
+         * Write this configuration as properties, see {@link #load(Properties)}. Networks are not included.
+         */
+        void store(Properties properties) {
+            properties.setProperty("image", image.asCanonicalNameString());
+            properties.setProperty("pgStartupWait", pgStartupWait.toString());
+            properties.setProperty("databaseName", databaseName);
+            tmpfsSize.ifPresent(size -> properties.setProperty("tmpfs", size));
+            limits.ifPresent(l -> l.store(properties));
+            properties.setProperty("reuse", Boolean.toString(reuse));
+            properties.setProperty("snapshotLayout", Boolean.toString(snapshotLayout));
+            localInstallation.ifPresent(bin -> properties.setProperty("localInstallation", bin.toString()));
+            properties.setProperty("initdbCache", Boolean.toString(initdbCache));
+            config.forEach((k, v) -> properties.setProperty("config." + k, v));
+            localeConfig.forEach((k, v) -> properties.setProperty("locale." + k, v));
+            int i = 0;
+            for (BindMount bindMount : bindMounts.values()) {
+                properties.setProperty("bindMount." + i + ".local", bindMount.getLocalFile());
+                properties.setProperty("bindMount." + i + ".remote", bindMount.getRemoteFile());
+                properties.setProperty("bindMount." + i + ".mode", bindMount.getBindMode().name());
+                i++;
+            }
+        }
+
+        /**
+         * Replace this configuration with one written by {@link #store(Properties)}.
+         */
+        void load(Properties properties) {
+            config.clear();
+            localeConfig.clear();
+            bindMounts.clear();
+            image = DockerImageName.parse(properties.getProperty("image"));
+            pgStartupWait = Duration.parse(properties.getProperty("pgStartupWait"));
+            databaseName = properties.getProperty("databaseName");
+            tmpfsSize = Optional.ofNullable(properties.getProperty("tmpfs"));
+            limits = AutoTuning.Limits.load(properties);
+            reuse = Boolean.parseBoolean(properties.getProperty("reuse"));
+            snapshotLayout = Boolean.parseBoolean(properties.getProperty("snapshotLayout"));
+            localInstallation = Optional.ofNullable(properties.getProperty("localInstallation")).map(Paths::get);
+            initdbCache = Boolean.parseBoolean(properties.getProperty("initdbCache", "true"));
+            for (String key : properties.stringPropertyNames()) {
+                if (key.startsWith("config.")) {
+                    config.put(key.substring("config.".length()), properties.getProperty(key));
+                } else if (key.startsWith("locale.")) {
+                    localeConfig.put(key.substring("locale.".length()), properties.getProperty(key));
+                } else if (key.startsWith("bindMount.") && key.endsWith(".local")) {
+                    final String prefix = key.substring(0, key.length() - "local".length());
+                    setBindMount(BindMount.of(properties.getProperty(key), properties.getProperty(prefix + "remote"),
+                            BindMode.valueOf(properties.getProperty(prefix + "mode"))));
+                }
+            }
+        }
+
         public EmbeddedPostgres start() throws IOException {
-            return new EmbeddedPostgres(config, localeConfig,  bindMounts, network, networkAlias, image, pgStartupWait, databaseName);
+            if (reuse && localInstallation.isPresent()) {
+                throw new IllegalStateException("setReuse(true) keeps a container running, it can not be combined with useLocalInstallation()");
+            }
+            final long startNanos = System.nanoTime();
+            try {
+                final ClusterBackend backend = localInstallation.isPresent()
+                        ? LocalProcessBackend.start(localInstallation.get(), config, localeConfig,
+                                initdbCache ? Optional.of(InitdbCache.DEFAULT) : Optional.empty(), pgStartupWait, databaseName)
+                        : new ContainerBackend(config, localeConfig,  bindMounts, network, networkAlias, image, pgStartupWait, databaseName, tmpfsSize, limits,
+                                reuse ? Optional.of(TemplateCache.sha256(configFingerprint())) : Optional.empty(), snapshotLayout);
+                final EmbeddedPostgres pg = new EmbeddedPostgres(backend, connectionPoolSize);
+                EmbeddedPostgresListeners.fire(l -> l.clusterStarted(EmbeddedPostgresListeners.since(startNanos), null));
+                return pg;
+            } catch (IOException | RuntimeException e) {
+                EmbeddedPostgresListeners.fire(l -> l.clusterStarted(EmbeddedPostgresListeners.since(startNanos), e));
+                throw e;
+            }
+        }
+
+        /**
+         * Start the cluster in the background, see {@link #start()}.
+         * @return a future completing with the started cluster, or exceptionally with the {@link IOException}
+         */
+        public CompletableFuture<EmbeddedPostgres> startAsync() {
+            return startAsync(AsyncExecutor.DEFAULT);
+        }
+
+        /**
+         * Start the cluster in the background, see {@link #start()}.
+         * @param executor runs the blocking start
+         * @return a future completing with the started cluster, or exceptionally with the {@link IOException}
+         */
+        public CompletableFuture<EmbeddedPostgres> startAsync(Executor executor) {
+            return AsyncExecutor.supply(this::start, executor);
         }
 
         @Override
@@ -362,12 +707,12 @@ public class EmbeddedPostgres implements Closeable {
                 return false;
             }
             Builder builder = (Builder) o;
-            return Objects.equals(config, builder.config) && Objects.equals(localeConfig, builder.localeConfig) && Objects.equals(bindMounts, builder.bindMounts) && Objects.equals(network, builder.network) && Objects.equals(pgStartupWait, builder.pgStartupWait) && Objects.equals(image, builder.image) && Objects.equals(databaseName, builder.databaseName) && Objects.equals(networkAlias, builder.networkAlias);
+            return Objects.equals(config, builder.config) && Objects.equals(localeConfig, builder.localeConfig) && Objects.equals(bindMounts, builder.bindMounts) && Objects.equals(network, builder.network) && Objects.equals(pgStartupWait, builder.pgStartupWait) && Objects.equals(image, builder.image) && Objects.equals(databaseName, builder.databaseName) && Objects.equals(networkAlias, builder.networkAlias) && Objects.equals(tmpfsSize, builder.tmpfsSize) && Objects.equals(limits, builder.limits) && reuse == builder.reuse && snapshotLayout == builder.snapshotLayout && Objects.equals(localInstallation, builder.localInstallation) && initdbCache == builder.initdbCache;
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(config, localeConfig, bindMounts, network, pgStartupWait, image, databaseName, networkAlias);
+            return Objects.hash(config, localeConfig, bindMounts, network, pgStartupWait, image, databaseName, networkAlias, tmpfsSize, limits, reuse, snapshotLayout, localInstallation, initdbCache);
         }
     }
 
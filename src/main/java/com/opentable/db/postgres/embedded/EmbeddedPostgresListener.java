@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.time.Duration;
+
+/**
+ * Receives timings of the expensive steps of handing out test databases. Register implementations with
+ * {@link EmbeddedPostgresListeners#register(EmbeddedPostgresListener)} or through a
+ * <code>META-INF/services/com.opentable.db.postgres.embedded.EmbeddedPostgresListener</code> file.
+ * <p>
+ * Callbacks run synchronously on the thread doing the work, so they should be cheap. In each callback
+ * <code>failure</code> is null if the step succeeded.
+ */
+public interface EmbeddedPostgresListener {
+
+    /**
+     * A cluster (container) was started, see {@link EmbeddedPostgres.Builder#start()}.
+     * @param elapsed time taken to start the container and wait for it to be ready
+     * @param failure why it failed, or null
+     */
+    default void clusterStarted(Duration elapsed, Throwable failure) {
+    }
+
+    /**
+     * A template database was prepared by running the {@link DatabasePreparer} or restoring it from the template cache.
+     * @param elapsed time taken
+     * @param failure why it failed, or null
+     */
+    default void templatePrepared(Duration elapsed, Throwable failure) {
+    }
+
+    /**
+     * A database was cloned from a template by <code>CREATE DATABASE</code>, ahead of being handed out.
+     * @param elapsed time taken
+     * @param failure why it failed, or null
+     */
+    default void databaseCloned(Duration elapsed, Throwable failure) {
+    }
+
+    /**
+     * A database was handed out by {@link PreparedDbProvider}.
+     * @param waited how long the caller was blocked waiting for a cloned database
+     * @param readyDatabases databases still ready to be handed out afterwards, or -1 if unknown
+     */
+    default void databaseAcquired(Duration waited, int readyDatabases) {
+    }
+
+    /**
+     * The number of cloned databases a pipeline holds ready changed, because a clone finished or a database was
+     * handed out. Pipelines of the shared daemon do not report this.
+     * @param pipeline identifies the pipeline by its template database and cluster
+     * @param readyDatabases databases ready to be handed out
+     */
+    default void databasesReady(String pipeline, int readyDatabases) {
+    }
+
+    /**
+     * A released database was dropped.
+     * @param elapsed time taken
+     * @param failure why it failed, or null
+     */
+    default void databaseDropped(Duration elapsed, Throwable failure) {
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The registered {@link EmbeddedPostgresListener}s. Listeners declared as services are registered when this class
+ * is first used; others may be added and removed at any time.
+ */
+public final class EmbeddedPostgresListeners {
+    private static final Logger LOG = LoggerFactory.getLogger(EmbeddedPostgresListeners.class);
+
+    private static final List<EmbeddedPostgresListener> LISTENERS = new CopyOnWriteArrayList<>(loadServices());
+
+    private EmbeddedPostgresListeners() {
+    }
+
+    private static List<EmbeddedPostgresListener> loadServices() {
+        final List<EmbeddedPostgresListener> result = new ArrayList<>();
+        try {
+            ServiceLoader.load(EmbeddedPostgresListener.class).forEach(result::add);
+        } catch (ServiceConfigurationError e) {
+            LOG.warn("Could not load listeners", e);
+        }
+        return result;
+    }
+
+    public static void register(EmbeddedPostgresListener listener) {
+        LISTENERS.add(listener);
+    }
+
+    public static void unregister(EmbeddedPostgresListener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    /**
+     * Notify all listeners. A failing listener is logged and does not affect the others.
+     */
+    static void fire(Consumer<EmbeddedPostgresListener> event) {
+        for (EmbeddedPostgresListener listener : LISTENERS) {
+            try {
+                event.accept(listener);
+            } catch (RuntimeException e) {
+                LOG.warn("Listener {} failed", listener, e);
+            }
+        }
+    }
+
+    static Duration since(long startNanos) {
+        return Duration.ofNanos(System.nanoTime() - startNanos);
+    }
+}
@@ -15,17 +15,23 @@ package com.opentable.db.postgres.embedded;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
 
 import javax.sql.DataSource;
 
 import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.output.MigrateResult;
 import org.flywaydb.core.internal.configuration.ConfigUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 // TODO: Detect missing migration files.
 // cf. https://github.com/flyway/flyway/issues/1496
@@ -35,10 +41,15 @@ import org.flywaydb.core.internal.configuration.ConfigUtils;
 /**
  * Support for integrating Flyway and performing a DB migration as part of the setup process.
  */
+@SuppressWarnings("OptionalUsedAsFieldOrParameterType")
 public final class FlywayPreparer implements DatabasePreparer {
+    private static final Logger LOG = LoggerFactory.getLogger(FlywayPreparer.class);
+    private static final String CLASSPATH_PREFIX = "classpath:";
+    private static final String FILESYSTEM_PREFIX = "filesystem:";
 
     private final List<String> locations;
     private final Map<String, String> flywayConfiguration;
+    private volatile Optional<String> fingerprint;
 
     public static FlywayPreparer forClasspathLocation(String... locations) {
         return new FlywayPreparer(Arrays.asList(locations), new HashMap<>());
@@ -66,7 +77,9 @@ public final class FlywayPreparer implements DatabasePreparer {
             throw new SQLException(e);
         }
         flywayConfiguration.putAll(this.flywayConfiguration);
-        Flyway.configure()
+        final JfrEvents.Migrate event = new JfrEvents.Migrate();
+        event.begin();
+        final MigrateResult result = Flyway.configure()
                 .configuration(fromClassPath)
                 .envVars()
                 .configuration(this.flywayConfiguration)
@@ -74,12 +87,64 @@ public final class FlywayPreparer implements DatabasePreparer {
                 .dataSource(ds)
                 .load()
                 .migrate();
+        event.tool = "flyway";
+        event.location = String.join(",", locations);
+        event.migrations = result.migrationsExecuted;
+        event.commit();
     }
 
     public List<String> getLocations() {
         return locations;
     }
 
+    /**
+     * Hashes the contents of all migration locations together with every configuration source
+     * (the explicit map, <code>FLYWAY_*</code> environment variables and <code>/flyway.properties</code>).
+     * Locations with a prefix other than <code>classpath:</code> and <code>filesystem:</code> can not be
+     * fingerprinted.
+     */
+    @Override
+    public Optional<String> getFingerprint() {
+        Optional<String> result = fingerprint;
+        if (result == null) {
+            result = computeFingerprint();
+            fingerprint = result;
+        }
+        return result;
+    }
+
+    private Optional<String> computeFingerprint() {
+        final ClassLoader classLoader = Optional.ofNullable(Thread.currentThread().getContextClassLoader())
+                .orElse(FlywayPreparer.class.getClassLoader());
+        final Map<String, String> envVars = new TreeMap<>();
+        System.getenv().forEach((key, value) -> {
+            if (key.startsWith("FLYWAY_")) {
+                envVars.put(key, value);
+            }
+        });
+        try {
+            final ResourceFingerprint result = new ResourceFingerprint()
+                    .add("preparer", "flyway")
+                    .add("configuration", new TreeMap<>(flywayConfiguration))
+                    .add("env", envVars)
+                    .addClasspathTree(classLoader, "flyway.properties");
+            for (String location : locations) {
+                if (location.startsWith(FILESYSTEM_PREFIX)) {
+                    result.addFileTree(Paths.get(location.substring(FILESYSTEM_PREFIX.length())));
+                } else if (location.startsWith(CLASSPATH_PREFIX) || !location.contains(":")) {
+                    result.addClasspathTree(classLoader, location.startsWith(CLASSPATH_PREFIX) ? location.substring(CLASSPATH_PREFIX.length()) : location);
+                } else {
+                    LOG.debug("Can not fingerprint location {}", location);
+                    return Optional.empty();
+                }
+            }
+            return Optional.of(result.build());
+        } catch (IOException e) {
+            LOG.debug("Could not fingerprint locations {}", locations, e);
+            return Optional.empty();
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o)  {
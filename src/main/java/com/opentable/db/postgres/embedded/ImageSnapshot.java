@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.exception.DockerException;
+import com.github.dockerjava.api.exception.NotFoundException;
+import com.github.dockerjava.api.model.Image;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.utility.DockerImageName;
+
+/**
+ * A local Docker image of a cluster with a prepared template, committed from the container that prepared it.
+ * Clusters started from it skip the preparer. Images are tagged by a hash of the cluster configuration and the
+ * template, which is named after the preparer's fingerprint, and labelled with the configuration hash; only the
+ * {@link #KEEP} newest images of a configuration are kept.
+ */
+final class ImageSnapshot {
+    private static final Logger LOG = LoggerFactory.getLogger(ImageSnapshot.class);
+
+    static final String REPOSITORY = "otj-pg-embedded-snapshot";
+    static final String TEMPLATE_LABEL = "com.opentable.db.postgres.template";
+    static final int KEEP = 5;
+
+    private final String configHash;
+    private final String templateName;
+    private final DockerImageName image;
+
+    /**
+     * @param builder configuration of the cluster the template is prepared in
+     * @param templateName name of the template, derived from the preparer's fingerprint
+     */
+    ImageSnapshot(EmbeddedPostgres.Builder builder, String templateName) {
+        this.configHash = TemplateCache.sha256(builder.configFingerprint());
+        this.templateName = templateName;
+        this.image = DockerImageName.parse(REPOSITORY)
+                .withTag(TemplateCache.sha256(configHash + "\n" + templateName).substring(0, 32));
+    }
+
+    DockerImageName getImage() {
+        return image;
+    }
+
+    boolean exists() {
+        try {
+            client().inspectImageCmd(image.asCanonicalNameString()).exec();
+            return true;
+        } catch (NotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checkpoint the cluster, so that starting from the image needs little recovery, and commit its container.
+     * @param pg cluster holding the prepared template, started with {@link EmbeddedPostgres.Builder#useSnapshotLayout()}
+     * @throws SQLException if the checkpoint fails
+     */
+    void commit(EmbeddedPostgres pg) throws SQLException {
+        try (Connection c = pg.getPostgresDatabase().getConnection();
+             Statement stmt = c.createStatement()) {
+            stmt.execute("CHECKPOINT");
+        }
+        final Map<String, String> labels = new HashMap<>();
+        labels.put(EmbeddedPostgres.CONFIG_LABEL, configHash);
+        labels.put(TEMPLATE_LABEL, templateName);
+        // The image inherits the container's labels, without this Testcontainers would remove it with the session.
+        labels.put(DockerClientFactory.TESTCONTAINERS_SESSION_ID_LABEL, REPOSITORY);
+        final String containerId = pg.getContainerId().orElseThrow(() -> new IllegalStateException(
+                "Only clusters in a container can be snapshotted, useLocalInstallation() can not be combined with snapshots"));
+        client().commitCmd(containerId)
+                .withRepository(REPOSITORY)
+                .withTag(image.getVersionPart())
+                .withLabels(labels)
+                .withPause(true)
+                .exec();
+        LOG.info("Committed template {} to image {}", templateName, image.asCanonicalNameString());
+        prune();
+    }
+
+    /**
+     * Remove all but the {@link #KEEP} newest images of this configuration. Images still used by a container stay.
+     */
+    void prune() {
+        final List<Image> images = new ArrayList<>(client().listImagesCmd()
+                .withLabelFilter(Collections.singletonMap(EmbeddedPostgres.CONFIG_LABEL, configHash))
+                .exec());
+        images.sort(Comparator.comparing(Image::getCreated).reversed());
+        for (Image old : images.subList(Math.min(KEEP, images.size()), images.size())) {
+            try {
+                client().removeImageCmd(old.getId()).exec();
+                LOG.info("Removed old snapshot image {}", old.getLabels().get(TEMPLATE_LABEL));
+            } catch (DockerException e) {
+                LOG.debug("Could not remove snapshot image {}", old.getId(), e);
+            }
+        }
+    }
+
+    private static DockerClient client() {
+        return DockerClientFactory.instance().client();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk cache of pristine data directories written by <code>initdb</code>, so that local clusters start from a
+ * copy instead of running it every time. Entries are keyed by the installation, its server version and the
+ * <code>initdb</code> options, and survive across JVM runs. Copies are reflinks where the filesystem supports them
+ * (<code>cp --reflink=auto</code>), otherwise plain copies made in parallel. Entries not used for
+ * {@link TemplateCache#MAX_UNUSED_AGE} are removed.
+ */
+final class InitdbCache {
+    private static final Logger LOG = LoggerFactory.getLogger(InitdbCache.class);
+
+    static final InitdbCache DEFAULT = new InitdbCache(TemplateCache.DEFAULT_DIRECTORY.resolve("initdb"));
+    private static final String TMP_PREFIX = ".tmp-";
+    private static final ConcurrentMap<Path, String> VERSIONS = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    // One initdb per key and JVM; other JVMs may race, the first complete entry wins.
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    InitdbCache(Path directory) {
+        this.directory = directory;
+    }
+
+    static String key(Path binDirectory, String serverVersion, List<String> initdbOptions) {
+        return TemplateCache.sha256(binDirectory.toAbsolutePath() + "\n" + serverVersion + "\n" + String.join(" ", initdbOptions));
+    }
+
+    /**
+     * Fill a new, empty data directory from the cache, running <code>initdb</code> once if the entry is missing.
+     * @param binDirectory directory holding <code>initdb</code> and <code>postgres</code>
+     * @param initdbOptions <code>initdb</code> options, without the data directory
+     * @param dataDirectory the empty data directory
+     * @throws IOException if <code>initdb</code> or the copy fails
+     */
+    void initialize(Path binDirectory, List<String> initdbOptions, Path dataDirectory) throws IOException {
+        final String key = key(binDirectory, serverVersion(binDirectory), initdbOptions);
+        final Path entry = directory.resolve(key);
+        synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+            if (!Files.isDirectory(entry)) {
+                create(binDirectory, initdbOptions, entry);
+            }
+        }
+        try {
+            Files.setLastModifiedTime(entry, FileTime.from(Instant.now()));
+        } catch (IOException e) {
+            LOG.debug("Could not touch {}", entry, e);
+        }
+        copy(entry, dataDirectory);
+    }
+
+    private void create(Path binDirectory, List<String> initdbOptions, Path entry) throws IOException {
+        Files.createDirectories(directory);
+        final Path tmp = Files.createTempDirectory(directory, TMP_PREFIX);
+        try {
+            final List<String> initdb = Stream.concat(
+                    Stream.of(binDirectory.resolve("initdb").toString(), "-D", tmp.toString()),
+                    initdbOptions.stream()).collect(Collectors.toList());
+            LocalProcessBackend.run(initdb);
+            try {
+                Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+                LOG.debug("Cached initdb data directory {}", entry);
+            } catch (FileAlreadyExistsException e) {
+                LOG.debug("Another process cached {} first", entry);
+            } catch (IOException e) {
+                // Some filesystems report a non-empty target as a plain failure.
+                if (!Files.isDirectory(entry)) {
+                    throw e;
+                }
+            }
+        } finally {
+            if (Files.exists(tmp)) {
+                LocalProcessBackend.delete(tmp);
+            }
+        }
+        prune();
+    }
+
+    static String serverVersion(Path binDirectory) throws IOException {
+        final Path bin = binDirectory.toAbsolutePath();
+        final String cached = VERSIONS.get(bin);
+        if (cached != null) {
+            return cached;
+        }
+        final String version = LocalProcessBackend.run(Arrays.asList(bin.resolve(EmbeddedPostgres.POSTGRES).toString(), "--version")).trim();
+        VERSIONS.put(bin, version);
+        return version;
+    }
+
+    /**
+     * Copy a data directory, preserving permissions, which the server checks.
+     */
+    static void copy(Path source, Path target) throws IOException {
+        try {
+            LocalProcessBackend.run(Arrays.asList("cp", "-a", "--reflink=auto", source + "/.", target.toString()));
+            return;
+        } catch (IOException e) {
+            LOG.debug("cp --reflink=auto failed, copying {} file by file", source, e);
+        }
+        final List<Path> files;
+        try (Stream<Path> walk = Files.walk(source)) {
+            files = walk.collect(Collectors.toList());
+        }
+        for (Path dir : files) {
+            if (Files.isDirectory(dir)) {
+                final Path copy = target.resolve(source.relativize(dir).toString());
+                if (!Files.isDirectory(copy)) {
+                    Files.createDirectory(copy);
+                }
+                Files.setPosixFilePermissions(copy, Files.getPosixFilePermissions(dir));
+            }
+        }
+        try {
+            files.parallelStream()
+                    .filter(Files::isRegularFile)
+                    .forEach(file -> {
+                        try {
+                            Files.copy(file, target.resolve(source.relativize(file).toString()), StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void prune() {
+        final Instant cutoff = Instant.now().minus(TemplateCache.MAX_UNUSED_AGE);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path entry : entries) {
+                if (!entry.getFileName().toString().startsWith(TMP_PREFIX)
+                        && Files.getLastModifiedTime(entry).toInstant().isBefore(cutoff)) {
+                    LOG.debug("Removing unused initdb cache entry {}", entry);
+                    LocalProcessBackend.delete(entry);
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("Could not prune initdb cache {}", directory, e);
+        }
+    }
+}
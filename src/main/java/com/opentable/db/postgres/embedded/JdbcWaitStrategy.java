@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.testcontainers.containers.PostgreSQLContainer.POSTGRESQL_PORT;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.function.BooleanSupplier;
+
+import org.postgresql.ds.PGSimpleDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.containers.ContainerLaunchException;
+import org.testcontainers.containers.wait.strategy.AbstractWaitStrategy;
+
+/**
+ * Waits for the server by running <code>SELECT 1</code> over the mapped port, retrying quickly at first and
+ * backing off to {@link #MAX_DELAY}.
+ * <p>
+ * The image's entrypoint runs a temporary server for its init scripts that only listens on the Unix socket, so the
+ * first successful TCP query is answered by the real server. This returns as soon as it is up, where the log based
+ * default has to see the ready message twice and polls coarsely.
+ */
+final class JdbcWaitStrategy extends AbstractWaitStrategy {
+    private static final Logger LOG = LoggerFactory.getLogger(JdbcWaitStrategy.class);
+
+    static final Duration INITIAL_DELAY = Duration.ofMillis(10);
+    static final Duration MAX_DELAY = Duration.ofMillis(250);
+
+    private final String databaseName;
+    private final String user;
+    private final String password;
+
+    JdbcWaitStrategy(String databaseName, String user, String password) {
+        this.databaseName = databaseName;
+        this.user = user;
+        this.password = password;
+    }
+
+    @Override
+    protected void waitUntilReady() {
+        final PGSimpleDataSource ds = new PGSimpleDataSource();
+        ds.setServerNames(new String[] {waitStrategyTarget.getHost()});
+        ds.setPortNumbers(new int[] {waitStrategyTarget.getMappedPort(POSTGRESQL_PORT)});
+        ds.setDatabaseName(databaseName);
+        ds.setUser(user);
+        ds.setPassword(password);
+        try {
+            await(ds, startupTimeout, waitStrategyTarget::isRunning);
+        } catch (IOException e) {
+            throw new ContainerLaunchException(e.getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Poll a server until it runs a query, also for servers not in a container.
+     * @param ds data source of the server
+     * @param timeout how long to wait
+     * @param running whether the server is still running; may be slow, it is only asked once polling slowed down
+     * @throws IOException if the server exits, does not answer in time or the thread is interrupted
+     */
+    static void await(PGSimpleDataSource ds, Duration timeout, BooleanSupplier running) throws IOException {
+        ds.setConnectTimeout(1);
+        ds.setSocketTimeout(5);
+        final long start = System.nanoTime();
+        final long deadline = start + timeout.toNanos();
+        long delay = INITIAL_DELAY.toNanos();
+        int attempts = 0;
+        SQLException lastFailure = null;
+        while (true) {
+            attempts++;
+            try (Connection c = ds.getConnection();
+                 Statement stmt = c.createStatement()) {
+                stmt.execute("SELECT 1");
+                LOG.debug("Server accepted connections after {} ms and {} attempts",
+                        Duration.ofNanos(System.nanoTime() - start).toMillis(), attempts);
+                return;
+            } catch (SQLException e) {
+                lastFailure = e;
+            }
+            if (delay == MAX_DELAY.toNanos() && !running.getAsBoolean()) {
+                throw new IOException("Server exited before it accepted connections", lastFailure);
+            }
+            if (System.nanoTime() + delay - deadline > 0) {
+                throw new IOException(String.format("Server did not accept connections within %s (%d attempts)",
+                        timeout, attempts), lastFailure);
+            }
+            try {
+                Thread.sleep(delay / 1_000_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the server", e);
+            }
+            delay = Math.min(MAX_DELAY.toNanos(), delay * 2);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events, so a recording shows database infrastructure time next to the code under test.
+ * <p>
+ * Events are begun and committed around the operations they time. While a recording does not enable them, that
+ * costs nothing beyond the allocation the JIT removes; values that are expensive to compute are only gathered
+ * when {@link Event#isEnabled()} is true.
+ */
+final class JfrEvents {
+    private static final String PREFIX = "com.opentable.db.postgres.";
+    private static final String CATEGORY = "Embedded Postgres";
+
+    private JfrEvents() {
+    }
+
+    static String message(Throwable failure) {
+        return failure == null ? null : String.valueOf(failure);
+    }
+
+    @Name(PREFIX + "ContainerStart")
+    @Label("Container Start")
+    @Description("Starting a Postgres container, including waiting for it to accept connections")
+    @Category({"OpenTable", CATEGORY})
+    @StackTrace(false)
+    static final class ContainerStart extends Event {
+        @Label("Image")
+        String image;
+
+        @Label("Failure")
+        String failure;
+    }
+
+    @Name(PREFIX + "ContainerReady")
+    @Label("Container Readiness Wait")
+    @Description("Waiting for a started Postgres container to accept connections")
+    @Category({"OpenTable", CATEGORY})
+    @StackTrace(false)
+    static final class ContainerReady extends Event {
+        @Label("Image")
+        String image;
+    }
+
+    @Name(PREFIX + "ContainerStop")
+    @Label("Container Stop")
+    @Category({"OpenTable", CATEGORY})
+    @StackTrace(false)
+    static final class ContainerStop extends Event {
+        @Label("Image")
+        String image;
+    }
+
+    @Name(PREFIX + "TemplatePrepare")
+    @Label("Template Preparation")
+    @Description("Creating and preparing a template database, or restoring it from the template cache")
+    @Category({"OpenTable", CATEGORY})
+    static final class TemplatePrepare extends Event {
+        @Label("Preparer")
+        String preparer;
+
+        @Label("Template")
+        String template;
+
+        @Label("Restored From Cache")
+        boolean cached;
+
+        @Label("Failure")
+        String failure;
+    }
+
+    @Name(PREFIX + "Migrate")
+    @Label("Migration")
+    @Description("Running schema migrations against a database")
+    @Category({"OpenTable", CATEGORY})
+    static final class Migrate extends Event {
+        @Label("Tool")
+        String tool;
+
+        @Label("Location")
+        String location;
+
+        @Label("Migrations Applied")
+        int migrations;
+    }
+
+    @Name(PREFIX + "DatabaseClone")
+    @Label("Database Clone")
+    @Description("Creating a test database from a template")
+    @Category({"OpenTable", CATEGORY})
+    @StackTrace(false)
+    static final class DatabaseClone extends Event {
+        @Label("Database")
+        String database;
+
+        @Label("Template")
+        String template;
+
+        @Label("Clone Strategy")
+        String strategy;
+
+        @Label("Failure")
+        String failure;
+    }
+
+    @Name(PREFIX + "DatabaseWait")
+    @Label("Database Wait")
+    @Description("A test waiting for a prepared database")
+    @Category({"OpenTable", CATEGORY})
+    static final class DatabaseWait extends Event {
+        @Label("Database")
+        String database;
+
+        @Label("Ready Databases")
+        @Description("Databases left ready to hand out, -1 if unknown")
+        int readyDatabases;
+    }
+
+    @Name(PREFIX + "PipelineIdle")
+    @Label("Pipeline Idle")
+    @Description("A preparer thread waiting for room in a full queue of ready databases")
+    @Category({"OpenTable", CATEGORY})
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static final class PipelineIdle extends Event {
+        @Label("Template")
+        String template;
+    }
+}
@@ -13,17 +13,30 @@
  */
 package com.opentable.db.postgres.embedded;
 
+import liquibase.ChecksumVersion;
 import liquibase.Contexts;
+import liquibase.LabelExpression;
 import liquibase.Liquibase;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
 import liquibase.database.Database;
 import liquibase.database.jvm.JdbcConnection;
 import liquibase.exception.LiquibaseException;
+import liquibase.parser.ChangeLogParserFactory;
 import liquibase.resource.ClassLoaderResourceAccessor;
+import liquibase.resource.ResourceAccessor;
 
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import static liquibase.database.DatabaseFactory.getInstance;
 
@@ -32,10 +45,13 @@ import static liquibase.database.DatabaseFactory.getInstance;
  *
  * NB: OpenTable doesn't use Liquibase, so this is currently community supported code.
  */
+@SuppressWarnings("OptionalUsedAsFieldOrParameterType")
 public final class LiquibasePreparer implements DatabasePreparer {
+    private static final Logger LOG = LoggerFactory.getLogger(LiquibasePreparer.class);
 
     private final String location;
     private final Contexts contexts;
+    private volatile Optional<String> fingerprint;
 
     public static LiquibasePreparer forClasspathLocation(String location) {
         return new LiquibasePreparer(location, new Contexts());
@@ -55,19 +71,78 @@ public final class LiquibasePreparer implements DatabasePreparer {
 
             Database database = getInstance().findCorrectDatabaseImplementation(new JdbcConnection(connection));
             Liquibase liquibase = new Liquibase(location, new ClassLoaderResourceAccessor(), database); //NOPMD
+            final JfrEvents.Migrate event = new JfrEvents.Migrate();
+            event.begin();
+            if (event.isEnabled()) {
+                // Liquibase does not report what it ran, so count up front, reading the change log history once more.
+                event.migrations = liquibase.listUnrunChangeSets(contexts, new LabelExpression()).size();
+            }
             liquibase.update(contexts);
+            event.tool = "liquibase";
+            event.location = location;
+            event.commit();
         } catch (LiquibaseException e) {
             throw new SQLException(e);
         }
     }
 
+    /**
+     * Hashes every change set Liquibase resolves from the change log, following <code>include</code> and
+     * <code>includeAll</code> wherever they point, by its file, id, author, checksum (which covers referenced SQL
+     * files) and run attributes, together with the contexts. Empty if the change log can not be parsed.
+     */
+    @Override
+    public Optional<String> getFingerprint() {
+        Optional<String> result = fingerprint;
+        if (result == null) {
+            result = computeFingerprint();
+            fingerprint = result;
+        }
+        return result;
+    }
+
+    private Optional<String> computeFingerprint() {
+        final ResourceAccessor accessor = new ClassLoaderResourceAccessor(Optional.ofNullable(Thread.currentThread().getContextClassLoader())
+                .orElse(LiquibasePreparer.class.getClassLoader()));
+        try {
+            final DatabaseChangeLog changeLog = ChangeLogParserFactory.getInstance().getParser(location, accessor)
+                    .parse(location, new ChangeLogParameters(), accessor);
+            final ResourceFingerprint result = new ResourceFingerprint()
+                    .add("preparer", "liquibase")
+                    .add("changelog", location)
+                    .add("contexts", contextNames());
+            for (ChangeSet changeSet : changeLog.getChangeSets()) {
+                result.add(changeSet.getFilePath() + "::" + changeSet.getId() + "::" + changeSet.getAuthor(), describe(changeSet));
+            }
+            return Optional.of(result.build());
+        } catch (LiquibaseException | RuntimeException e) {
+            LOG.debug("Could not fingerprint change log {}, not caching its template", location, e);
+            return Optional.empty();
+        }
+    }
+
+    private static String describe(ChangeSet changeSet) {
+        final Set<String> dbms = changeSet.getDbmsSet();
+        return changeSet.generateCheckSum(ChecksumVersion.latest())
+                + " contexts=" + changeSet.getContextFilter()
+                + " labels=" + changeSet.getLabels()
+                + " dbms=" + (dbms == null ? "" : new TreeSet<>(dbms))
+                + " alwaysRun=" + changeSet.isAlwaysRun()
+                + " runOnChange=" + changeSet.isRunOnChange();
+    }
+
+    private TreeSet<String> contextNames() {
+        return contexts == null ? new TreeSet<>() : new TreeSet<>(contexts.getContexts());
+    }
+
     @Override
     public boolean equals(Object obj) {
-        return obj instanceof LiquibasePreparer && Objects.equals(location, ((LiquibasePreparer) obj).location);
+        return obj instanceof LiquibasePreparer && Objects.equals(location, ((LiquibasePreparer) obj).location)
+                && Objects.equals(contextNames(), ((LiquibasePreparer) obj).contextNames());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(location);
+        return Objects.hash(location, contextNames());
     }
 }
@@ -0,0 +1,311 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static com.opentable.db.postgres.embedded.EmbeddedPostgres.POSTGRES;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import org.postgresql.ds.PGSimpleDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The server as a child process of this JVM, run from the binaries of a local PostgreSQL installation: a fresh
+ * data directory from <code>initdb</code> or a copy of a cached one, see {@link InitdbCache}, <code>postgres</code> on a free port of the loopback interface with its
+ * socket in a private directory, and <code>pg_ctl</code> to stop it. Both directories are deleted on close.
+ * Clusters are usually left running until the JVM exits, so a shutdown hook stops the server and deletes the
+ * directories of any that were not closed. PostgreSQL refuses to run as root.
+ */
+final class LocalProcessBackend implements ClusterBackend {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalProcessBackend.class);
+
+    static final String HOST = "127.0.0.1";
+    private static final Duration STOP_TIMEOUT = Duration.ofSeconds(30);
+
+    private final Path binDirectory;
+    private final Path dataDirectory;
+    private final Path socketDirectory;
+    private final int port;
+    private final String databaseName;
+    private final Process postgres;
+    private final Thread shutdownHook;
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    private LocalProcessBackend(Path binDirectory, Path dataDirectory, Path socketDirectory, int port, String databaseName, Process postgres) {
+        this.binDirectory = binDirectory;
+        this.dataDirectory = dataDirectory;
+        this.socketDirectory = socketDirectory;
+        this.port = port;
+        this.databaseName = databaseName;
+        this.postgres = postgres;
+        this.shutdownHook = new Thread(this::stopAtExit, "embedded-pg-stop-" + port);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Stop a server the provider never closed, without waiting for clients to disconnect.
+     */
+    private void stopAtExit() {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            run(Arrays.asList(binDirectory.resolve("pg_ctl").toString(), "stop", "-D", dataDirectory.toString(),
+                    "-m", "immediate", "-w", "-t", "5"));
+        } catch (IOException e) {
+            LOG.debug("Could not stop the server at exit, killing it", e);
+        }
+        try {
+            postgres.destroyForcibly().waitFor(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        delete(dataDirectory);
+        delete(socketDirectory);
+    }
+
+    /**
+     * Initialize a data directory and start the server on it.
+     * @param binDirectory directory holding <code>initdb</code>, <code>pg_ctl</code> and <code>postgres</code>
+     * @param postgresConfig server settings
+     * @param localeConfig <code>initdb</code> options
+     * @param initdbCache where to copy the data directory from instead of running <code>initdb</code>, if anywhere
+     * @param startupWait how long to wait for the server to accept connections
+     * @param databaseName database to create if it is not <code>postgres</code>
+     * @return the running server
+     * @throws IOException if a step fails
+     */
+    static LocalProcessBackend start(Path binDirectory, Map<String, String> postgresConfig, Map<String, String> localeConfig,
+                                     Optional<InitdbCache> initdbCache, Duration startupWait, String databaseName) throws IOException {
+        final JfrEvents.ContainerStart event = new JfrEvents.ContainerStart();
+        event.begin();
+        final Path dataDirectory = Files.createTempDirectory("embedded-pg-data");
+        final Path socketDirectory = Files.createTempDirectory("embedded-pg-socket");
+        Process postgres = null;
+        LocalProcessBackend backend = null;
+        try {
+            final List<String> initdbOptions = new ArrayList<>(Arrays.asList("-U", POSTGRES, "-A", "trust", "-E", "UTF8", "--no-sync"));
+            initdbOptions.addAll(ClusterBackend.initOptions(localeConfig));
+            if (initdbCache.isPresent()) {
+                initdbCache.get().initialize(binDirectory, initdbOptions, dataDirectory);
+            } else {
+                final List<String> initdb = new ArrayList<>(Arrays.asList(binDirectory.resolve("initdb").toString(), "-D", dataDirectory.toString()));
+                initdb.addAll(initdbOptions);
+                run(initdb);
+            }
+
+            final int port = freePort();
+            final List<String> command = new ArrayList<>(Arrays.asList(
+                    binDirectory.resolve(POSTGRES).toString(), "-D", dataDirectory.toString(),
+                    "-p", Integer.toString(port), "-h", HOST, "-k", socketDirectory.toString()));
+            command.addAll(ClusterBackend.configOptions(postgresConfig));
+            postgres = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(dataDirectory.resolve("postmaster.log").toFile())
+                    .start();
+            backend = new LocalProcessBackend(binDirectory, dataDirectory, socketDirectory, port, databaseName, postgres);
+            final JfrEvents.ContainerReady ready = new JfrEvents.ContainerReady();
+            ready.begin();
+            try {
+                JdbcWaitStrategy.await(backend.dataSource(POSTGRES), startupWait, postgres::isAlive);
+            } catch (IOException e) {
+                throw new IOException(e.getMessage() + ", server log:\n" + backend.log(), e.getCause());
+            } finally {
+                ready.image = binDirectory.toString();
+                ready.commit();
+            }
+            if (!POSTGRES.equals(databaseName)) {
+                backend.createDatabase();
+            }
+            return backend;
+        } catch (IOException | RuntimeException e) {
+            event.failure = JfrEvents.message(e);
+            if (backend != null) {
+                backend.stopAtExit();
+                backend.removeShutdownHook();
+            } else {
+                if (postgres != null) {
+                    postgres.destroyForcibly();
+                }
+                delete(dataDirectory);
+                delete(socketDirectory);
+            }
+            throw e;
+        } finally {
+            event.image = binDirectory.toString();
+            event.commit();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName(HOST))) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private PGSimpleDataSource dataSource(String dbName) {
+        final PGSimpleDataSource ds = new PGSimpleDataSource();
+        ds.setServerNames(new String[] {HOST});
+        ds.setPortNumbers(new int[] {port});
+        ds.setDatabaseName(dbName);
+        ds.setUser(POSTGRES);
+        return ds;
+    }
+
+    private void createDatabase() throws IOException {
+        try (Connection c = dataSource(POSTGRES).getConnection();
+             Statement stmt = c.createStatement()) {
+            stmt.execute(String.format("CREATE DATABASE \"%s\"", databaseName));
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private String log() {
+        try {
+            return new String(Files.readAllBytes(dataDirectory.resolve("postmaster.log")), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return e.toString();
+        }
+    }
+
+    @Override
+    public String getJdbcUrl() {
+        return String.format("jdbc:postgresql://%s:%d/%s", HOST, port, databaseName);
+    }
+
+    @Override
+    public String getHost() {
+        return HOST;
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public String getUserName() {
+        return POSTGRES;
+    }
+
+    @Override
+    public String getPassword() {
+        return POSTGRES;
+    }
+
+    @Override
+    public String getDatabaseName() {
+        return databaseName;
+    }
+
+    @Override
+    public void dump(String userName, String dbName, Path target) throws IOException {
+        run(Arrays.asList(binDirectory.resolve("pg_dump").toString(), "-h", socketDirectory.toString(), "-p", Integer.toString(port),
+                "-U", userName, "-Fc", "-f", target.toString(), dbName));
+    }
+
+    @Override
+    public void restore(String userName, String dbName, Path source) throws IOException {
+        run(Arrays.asList(binDirectory.resolve("pg_restore").toString(), "-h", socketDirectory.toString(), "-p", Integer.toString(port),
+                "-U", userName, "--exit-on-error", "-d", dbName, source.toString()));
+    }
+
+    private void removeShutdownHook() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Already shutting down, the hook stops the server.
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        removeShutdownHook();
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        final JfrEvents.ContainerStop event = new JfrEvents.ContainerStop();
+        event.begin();
+        try {
+            run(Arrays.asList(binDirectory.resolve("pg_ctl").toString(), "stop", "-D", dataDirectory.toString(),
+                    "-m", "fast", "-w", "-t", Long.toString(STOP_TIMEOUT.getSeconds())));
+        } catch (IOException e) {
+            LOG.warn("Could not stop the server cleanly, killing it", e);
+        }
+        try {
+            if (!postgres.waitFor(STOP_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                postgres.destroyForcibly().waitFor();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            postgres.destroyForcibly();
+        }
+        delete(dataDirectory);
+        delete(socketDirectory);
+        event.image = binDirectory.toString();
+        event.commit();
+    }
+
+    /**
+     * @return the command's output
+     */
+    static String run(List<String> command) throws IOException {
+        final Path output = Files.createTempFile("embedded-pg", ".log");
+        try {
+            final Process process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(output.toFile())
+                    .start();
+            final int exitCode = process.waitFor();
+            final String result = new String(Files.readAllBytes(output), StandardCharsets.UTF_8);
+            if (exitCode != 0) {
+                throw new IOException(String.format("'%s' failed with exit code %d: %s", String.join(" ", command), exitCode, result));
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            Files.deleteIfExists(output);
+        }
+    }
+
+    static void delete(Path directory) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException e) {
+            LOG.debug("Could not delete {}", directory, e);
+        }
+    }
+}
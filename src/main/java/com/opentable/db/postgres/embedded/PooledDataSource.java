@@ -0,0 +1,275 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.io.PrintWriter;
+import java.lang.ref.Cleaner;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.time.Duration;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small connection pool for one test database, saving the connection handshake on every
+ * {@link #getConnection()}.
+ * <p>
+ * At most <code>maxSize</code> connections are open; callers wait up to {@link #CHECKOUT_TIMEOUT} for one to be
+ * returned. Closing a connection rolls back an open transaction and returns it to the pool. Closing the pool closes
+ * all its connections, including those never returned, and so does garbage collecting a pool nobody closed.
+ * {@link #getConnection(String, String)} is not pooled.
+ */
+public final class PooledDataSource implements DataSource, AutoCloseable {
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(PooledDataSource.class);
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    static final Duration CHECKOUT_TIMEOUT = Duration.ofSeconds(30);
+
+    private final DataSource target;
+    private final int maxSize;
+    private final Pool pool;
+    private final Cleaner.Cleanable cleanable;
+
+    PooledDataSource(DataSource target, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1.");
+        }
+        this.target = target;
+        this.maxSize = maxSize;
+        this.pool = new Pool(maxSize);
+        this.cleanable = CLEANER.register(this, pool);
+    }
+
+    /**
+     * Hand the pool a connection opened ahead of the first {@link #getConnection()}.
+     * @param connection an idle connection to the same database
+     */
+    void adopt(Connection connection) {
+        pool.open.add(connection);
+        pool.idle.push(connection);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (pool.closed.get()) {
+            throw new SQLException("Pool is closed");
+        }
+        try {
+            if (!pool.permits.tryAcquire(CHECKOUT_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                throw new SQLException(String.format("All %d pooled connections stayed in use for %s, are connections left unclosed?",
+                        maxSize, CHECKOUT_TIMEOUT));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        }
+        try {
+            Connection connection = pool.idle.poll();
+            if (connection == null) {
+                connection = target.getConnection();
+                pool.open.add(connection);
+            }
+            return (Connection) Proxy.newProxyInstance(PooledDataSource.class.getClassLoader(),
+                    new Class<?>[] {Connection.class}, new CheckoutHandler(connection));
+        } catch (SQLException | RuntimeException e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return target.getConnection(username, password);
+    }
+
+    /**
+     * @return number of connections currently open, idle or in use
+     */
+    public int getOpenCount() {
+        return pool.open.size();
+    }
+
+    /**
+     * Close all connections, including those still in use. Later {@link #getConnection()} calls fail.
+     */
+    @Override
+    public void close() {
+        cleanable.clean();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return target.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        target.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        target.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return target.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return target.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return target.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || target.isWrapperFor(iface);
+    }
+
+    @Override
+    public String toString() {
+        return "PooledDataSource[" + target + ", maxSize=" + maxSize + "]";
+    }
+
+    /**
+     * The connections, kept apart from the data source so the {@link Cleaner} can close them once it is unreachable.
+     */
+    private static final class Pool implements Runnable {
+        private final Deque<Connection> idle = new ConcurrentLinkedDeque<>();
+        private final Set<Connection> open = ConcurrentHashMap.newKeySet();
+        private final Semaphore permits;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Pool(int maxSize) {
+            this.permits = new Semaphore(maxSize);
+        }
+
+        void giveBack(Connection connection) {
+            try {
+                if (!reset(connection)) {
+                    discard(connection);
+                    return;
+                }
+                idle.push(connection);
+                // Closing the pool may have raced with this, make sure the connection does not outlive it.
+                if (closed.get() && idle.remove(connection)) {
+                    discard(connection);
+                }
+            } finally {
+                permits.release();
+            }
+        }
+
+        private boolean reset(Connection connection) {
+            if (closed.get()) {
+                return false;
+            }
+            try {
+                if (connection.isClosed()) {
+                    return false;
+                }
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                if (connection.isReadOnly()) {
+                    connection.setReadOnly(false);
+                }
+                connection.clearWarnings();
+                return true;
+            } catch (SQLException e) {
+                LOG.debug("Discarding pooled connection that could not be reset", e);
+                return false;
+            }
+        }
+
+        void discard(Connection connection) {
+            open.remove(connection);
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOG.debug("Could not close pooled connection", e);
+            }
+        }
+
+        @Override
+        public void run() {
+            closed.set(true);
+            idle.clear();
+            open.forEach(this::discard);
+        }
+    }
+
+    private final class CheckoutHandler implements InvocationHandler {
+        private final Connection connection;
+        private final AtomicBoolean returned = new AtomicBoolean();
+
+        CheckoutHandler(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (returned.compareAndSet(false, true)) {
+                        pool.giveBack(connection);
+                    }
+                    return null;
+                case "isClosed":
+                    return returned.get() || connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled[" + connection + "]";
+                default:
+                    break;
+            }
+            if (returned.get()) {
+                throw new SQLException("Connection is closed");
+            }
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.sql.DataSource;
+
+import org.postgresql.ds.PGSimpleDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.opentable.db.postgres.embedded.EmbeddedPostgres.Builder;
+
+/**
+ * A process that owns database clusters and prepared templates on behalf of all JVMs on a machine,
+ * see {@link PreparedDbProvider.Options#setSharedDaemon(boolean)}. It is started by the first JVM that needs it
+ * and listens on a loopback port, which it publishes in a port file in its directory.
+ * <p>
+ * Each client connection asks for one template and then leases databases cloned from it, using a line based
+ * protocol of tab separated fields:
+ * <ul>
+ *     <li><code>PING</code>: answered with <code>PONG</code> and the protocol version.</li>
+ *     <li><code>TEMPLATE fingerprint config</code>: find or start the cluster and template. If the template does not
+ *     exist yet, the daemon replies <code>PREPARE url user password</code>, the client runs its preparer against that
+ *     database and answers <code>PREPARED</code> or <code>FAILED message</code>. Finally answered with
+ *     <code>READY</code> or <code>ERROR message</code>.</li>
+ *     <li><code>CREATE</code>: answered with <code>DB url user password host port name</code> or <code>ERROR message</code>.</li>
+ *     <li><code>DROP name</code>: release a database, answered with <code>OK</code>.</li>
+ * </ul>
+ * Databases still leased when a client disconnects are dropped. Clusters without clients are stopped after the idle
+ * timeout, and the daemon exits once it has had neither clusters nor clients for as long.
+ */
+public final class PreparedDbDaemon implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(PreparedDbDaemon.class);
+
+    static final int PROTOCOL_VERSION = 1;
+    static final Path DEFAULT_DIRECTORY = TemplateCache.DEFAULT_DIRECTORY.resolve("daemon-v" + PROTOCOL_VERSION);
+    static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(5);
+    static final String PORT_FILE = "daemon.port";
+    static final String LOG_FILE = "daemon.log";
+    private static final Duration MAX_REAP_INTERVAL = Duration.ofSeconds(10);
+
+    private final Path directory;
+    private final Duration idleTimeout;
+    private final ServerSocket serverSocket;
+    private final ScheduledExecutorService reaper;
+    private final ExecutorService sessionThreads;
+
+    // @GuardedBy("this")
+    private final Map<Builder, ClusterUse> clusters = new HashMap<>();
+    // @GuardedBy("this")
+    private int sessions;
+    // @GuardedBy("this")
+    private Instant idleSince = Instant.now();
+
+    /**
+     * Run a daemon until it has been idle for the idle timeout.
+     * @param args the daemon directory and optionally the idle timeout as an ISO-8601 duration
+     * @throws IOException if the daemon can not be started
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("Usage: PreparedDbDaemon <directory> [<idle timeout>]");
+        }
+        final Duration idleTimeout = args.length > 1 ? Duration.parse(args[1]) : DEFAULT_IDLE_TIMEOUT;
+        try (PreparedDbDaemon daemon = new PreparedDbDaemon(Paths.get(args[0]), idleTimeout)) {
+            daemon.run();
+        }
+    }
+
+    PreparedDbDaemon(Path directory, Duration idleTimeout) throws IOException {
+        this.directory = directory;
+        this.idleTimeout = idleTimeout;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> { //NOPMD
+            final Thread t = new Thread(r);
+            t.setDaemon(true);
+            t.setName("pg-daemon-reaper");
+            return t;
+        });
+        this.sessionThreads = Executors.newCachedThreadPool(r -> { //NOPMD
+            final Thread t = new Thread(r);
+            t.setDaemon(true);
+            t.setName("pg-daemon-session");
+            return t;
+        });
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Publish the port and serve clients until closed.
+     */
+    void run() throws IOException {
+        Files.createDirectories(directory);
+        final Path tmp = Files.createTempFile(directory, PORT_FILE, ".tmp");
+        Files.write(tmp, Integer.toString(getPort()).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, directory.resolve(PORT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.info("Shared daemon listening on port {}, idle timeout {}", getPort(), idleTimeout);
+
+        final long reapMillis = Math.min(idleTimeout.toMillis(), MAX_REAP_INTERVAL.toMillis());
+        reaper.scheduleWithFixedDelay(this::reap, reapMillis, reapMillis, TimeUnit.MILLISECONDS);
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                // closed because the daemon is idle
+                break;
+            }
+            sessionThreads.execute(() -> serve(socket));
+        }
+    }
+
+    private void serve(Socket socket) {
+        final Map<String, DatabaseLease> leases = new HashMap<>();
+        Builder cluster = null;
+        PreparedDbProvider provider = null;
+        sessionOpened();
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] request = line.split("\t", -1);
+                switch (request[0]) {
+                    case "PING":
+                        send(out, "PONG", Integer.toString(PROTOCOL_VERSION));
+                        break;
+                    case "TEMPLATE":
+                        if (cluster != null) {
+                            send(out, "ERROR", "template already chosen");
+                            break;
+                        }
+                        final Properties config = decode(request[2]);
+                        cluster = EmbeddedPostgres.builder();
+                        cluster.load(config);
+                        clusterUsed(cluster);
+                        try {
+                            provider = PreparedDbProvider.forPreparer(new RemotePreparer(request[1], in, out),
+                                    Collections.singletonList(b -> b.load(config)), PreparedDbProvider.Options.load(config));
+                            send(out, "READY");
+                        } catch (RuntimeException e) {
+                            LOG.warn("Could not provide template {}", request[1], e);
+                            send(out, "ERROR", message(e));
+                        }
+                        break;
+                    case "CREATE":
+                        if (provider == null) {
+                            send(out, "ERROR", "no template chosen");
+                            break;
+                        }
+                        try {
+                            final DatabaseLease lease = provider.leaseDatabase();
+                            leases.put(lease.getDatabaseName(), lease);
+                            final ConnectionInfo info = lease.getConnectionInfo();
+                            send(out, "DB", info.getUrl(), info.getUser(), info.getPassword(), info.getHost(),
+                                    Integer.toString(info.getPort()), lease.getDatabaseName());
+                        } catch (SQLException | RuntimeException e) {
+                            send(out, "ERROR", message(e));
+                        }
+                        break;
+                    case "DROP":
+                        Optional.ofNullable(leases.remove(request[1])).ifPresent(DatabaseLease::close);
+                        send(out, "OK");
+                        break;
+                    default:
+                        send(out, "ERROR", "unknown request " + request[0]);
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("Client disconnected", e);
+        } finally {
+            leases.values().forEach(DatabaseLease::close);
+            sessionClosed(cluster);
+        }
+    }
+
+    private synchronized void sessionOpened() {
+        sessions++;
+    }
+
+    private synchronized void clusterUsed(Builder cluster) {
+        clusters.computeIfAbsent(cluster, c -> new ClusterUse()).sessions++;
+    }
+
+    private synchronized void sessionClosed(Builder cluster) {
+        final Instant now = Instant.now();
+        sessions--;
+        idleSince = now;
+        if (cluster != null) {
+            final ClusterUse use = clusters.get(cluster);
+            use.sessions--;
+            use.idleSince = now;
+        }
+    }
+
+    /**
+     * Stop clusters that have not been used for the idle timeout, and the daemon itself once nothing is left.
+     */
+    private synchronized void reap() {
+        final Instant cutoff = Instant.now().minus(idleTimeout);
+        final List<Builder> idle = clusters.entrySet().stream()
+                .filter(e -> e.getValue().sessions == 0 && e.getValue().idleSince.isBefore(cutoff))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        for (Builder cluster : idle) {
+            LOG.info("Stopping idle cluster {}", cluster.configFingerprint());
+            clusters.remove(cluster);
+            PreparedDbProvider.closeCluster(cluster);
+        }
+        if (sessions == 0 && clusters.isEmpty() && idleSince.isBefore(cutoff)) {
+            LOG.info("Shared daemon idle, exiting");
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                LOG.debug("Could not close server socket", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        reaper.shutdownNow();
+        sessionThreads.shutdownNow();
+        final List<Builder> remaining;
+        synchronized (this) {
+            remaining = new ArrayList<>(clusters.keySet());
+            clusters.clear();
+        }
+        remaining.forEach(PreparedDbProvider::closeCluster);
+        final Path portFile = directory.resolve(PORT_FILE);
+        try {
+            if (Files.exists(portFile) && Integer.toString(getPort()).equals(new String(Files.readAllBytes(portFile), StandardCharsets.UTF_8))) {
+                Files.delete(portFile);
+            }
+        } catch (IOException e) {
+            LOG.debug("Could not remove {}", portFile, e);
+        }
+    }
+
+    static void send(Writer out, String... fields) throws IOException {
+        out.write(Arrays.stream(fields)
+                .map(f -> f == null ? "" : f.replace('\t', ' ').replace('\n', ' ').replace('\r', ' '))
+                .collect(Collectors.joining("\t")));
+        out.write('\n');
+        out.flush();
+    }
+
+    static String encode(Properties properties) throws IOException {
+        final StringWriter writer = new StringWriter();
+        properties.store(writer, null);
+        return Base64.getEncoder().encodeToString(writer.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    static Properties decode(String encoded) throws IOException {
+        final Properties properties = new Properties();
+        properties.load(new StringReader(new String(Base64.getDecoder().decode(encoded), StandardCharsets.UTF_8)));
+        return properties;
+    }
+
+    static String message(Exception e) {
+        return e.getCause() != null && e instanceof RuntimeException ? String.valueOf(e.getCause()) : String.valueOf(e);
+    }
+
+    private static final class ClusterUse {
+        private int sessions;
+        private Instant idleSince = Instant.now();
+    }
+
+    /**
+     * Stands in for the client's preparer: asks the client to prepare the template itself, so that migrations are
+     * loaded from the client's classpath. Preparers with equal fingerprints share a template.
+     */
+    private static final class RemotePreparer implements DatabasePreparer {
+        private final String fingerprint;
+        private final BufferedReader in;
+        private final Writer out;
+
+        RemotePreparer(String fingerprint, BufferedReader in, Writer out) {
+            this.fingerprint = fingerprint;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void prepare(DataSource ds) throws SQLException {
+            final PGSimpleDataSource template = ds.unwrap(PGSimpleDataSource.class);
+            try {
+                send(out, "PREPARE", template.getUrl(), template.getUser(), template.getPassword());
+                final String reply = in.readLine();
+                if (reply == null) {
+                    throw new SQLException("Client disconnected while preparing the template");
+                }
+                if (!"PREPARED".equals(reply)) {
+                    throw new SQLException("Client could not prepare the template: " + reply);
+                }
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+        }
+
+        @Override
+        public Optional<String> getFingerprint() {
+            return Optional.of(fingerprint);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            return Objects.equals(fingerprint, ((RemotePreparer) o).fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fingerprint);
+        }
+    }
+}
@@ -13,20 +13,44 @@
  */
 package com.opentable.db.postgres.embedded;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 import javax.sql.DataSource;
@@ -42,49 +66,483 @@ public class PreparedDbProvider {
     private static final Logger LOG = LoggerFactory.getLogger(PreparedDbProvider.class);
 
     /**
-     * Each database cluster's <code>template1</code> database has a unique set of schema
-     * loaded so that the databases may be cloned.
+     * One database cluster is started for each distinct {@link Builder} configuration, and more identical ones for
+     * providers spreading databases over {@link Options#setClusterCount(int) several clusters}.
+     * The first caller for a cluster starts it, concurrent callers wait on the same future.
      */
-    // @GuardedBy("PreparedDbProvider.class")
-    private static final Map<ClusterKey, PrepPipeline> CLUSTERS = new HashMap<>();
+    private static final ConcurrentMap<ClusterKey, CompletableFuture<EmbeddedPostgres>> CLUSTERS = new ConcurrentHashMap<>();
 
-    private final PrepPipeline dbPreparer;
+    /**
+     * Each preparer gets its own template database within the cluster, which is loaded once
+     * and then cloned by its pipeline. Different keys are prepared in parallel.
+     */
+    private static final ConcurrentMap<PipelineKey, SharedPipeline> PIPELINES = new ConcurrentHashMap<>();
+
+    /**
+     * Start of the comment on a kept template, followed by when it was last prepared or reused.
+     */
+    private static final String TEMPLATE_LAST_USED = "otj-pg-embedded template last used ";
+
+    private final CompletableFuture<Pipeline> dbPreparer;
+    private final int connectionPoolSize;
+    /**
+     * Pools by JDBC URL, so that all data sources of a database share its connections. A leased database's pool is
+     * removed and closed with the lease.
+     */
+    private final ConcurrentMap<String, PooledDataSource> pools = new ConcurrentHashMap<>();
 
     public static PreparedDbProvider forPreparer(DatabasePreparer preparer) {
         return forPreparer(preparer, Collections.emptyList());
     }
 
     public static PreparedDbProvider forPreparer(DatabasePreparer preparer, Iterable<Consumer<EmbeddedPostgres.Builder>> customizers) {
-        return new PreparedDbProvider(preparer, customizers);
+        return forPreparer(preparer, customizers, options());
     }
 
-    private PreparedDbProvider(DatabasePreparer preparer, Iterable<Consumer<Builder>> customizers) {
+    public static PreparedDbProvider forPreparer(DatabasePreparer preparer, Iterable<Consumer<EmbeddedPostgres.Builder>> customizers, Options options) {
+        return new PreparedDbProvider(preparer, customizers, options);
+    }
+
+    public static Options options() {
+        return new Options();
+    }
+
+    private PreparedDbProvider(DatabasePreparer preparer, Iterable<Consumer<Builder>> customizers, Options options) {
+        Objects.requireNonNull(options);
+        final Builder builder = EmbeddedPostgres.builder();
+        customizers.forEach(c -> c.accept(builder));
+        final Options copy = options.copy();
+        connectionPoolSize = copy.connectionPoolSize;
+        if (copy.lazy) {
+            dbPreparer = AsyncExecutor.supply(() -> createOrFindPreparer(preparer, builder, copy), AsyncExecutor.DEFAULT);
+            return;
+        }
         try {
-            dbPreparer = createOrFindPreparer(preparer, customizers);
+            dbPreparer = CompletableFuture.completedFuture(createOrFindPreparer(preparer, builder, copy));
         } catch (final IOException | SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
     /**
-     * Each schema set has its own database cluster.  The template1 database has the schema preloaded so that
-     * each test case need only create a new database and not re-invoke your preparer.
+     * @return the pipeline, waiting for it to be started in lazy mode
      */
-    private static synchronized PrepPipeline createOrFindPreparer(DatabasePreparer preparer, Iterable<Consumer<Builder>> customizers) throws IOException, SQLException {
-        final ClusterKey key = new ClusterKey(preparer, customizers);
-        PrepPipeline result = CLUSTERS.get(key);
-        if (result != null) {
-            return result;
+    private Pipeline pipeline() throws SQLException {
+        try {
+            return dbPreparer.join();
+        } catch (CompletionException e) {
+            throw new SQLException("Could not start the cluster or prepare the template", e.getCause());
         }
+    }
 
-        final Builder builder = EmbeddedPostgres.builder();
-        customizers.forEach(c -> c.accept(builder));
-        final EmbeddedPostgres pg = builder.start(); //NOPMD
-        preparer.prepare(pg.getTemplateDatabase());
+    /**
+     * @return the pipeline if it has been started successfully, without waiting
+     */
+    private Optional<Pipeline> startedPipeline() {
+        return dbPreparer.isDone() && !dbPreparer.isCompletedExceptionally() ? Optional.of(dbPreparer.join()) : Optional.empty();
+    }
 
-        result = new PrepPipeline(pg).start();
-        CLUSTERS.put(key, result);
-        return result;
+    /**
+     * Clusters are shared by all preparers with the same builder configuration.  Each preparer loads its schema
+     * into its own template database, so that each test case need only create a new database from that template
+     * and not re-invoke your preparer.
+     */
+    private static Pipeline createOrFindPreparer(DatabasePreparer preparer, Builder builder, Options options) throws IOException, SQLException {
+        final PipelineKey key = new PipelineKey(preparer, builder, options);
+        final SharedPipeline created = new SharedPipeline(options);
+        final SharedPipeline existing = PIPELINES.putIfAbsent(key, created);
+        if (existing != null) {
+            if (!existing.options.tuningIdentity().equals(options.tuningIdentity())) {
+                LOG.warn("A pipeline for this preparer and cluster was already started with prefetch depth {}, {} workers and"
+                        + " pooling {}; it is shared and keeps those instead of prefetch depth {}, {} workers and pooling {}",
+                        existing.options.prefetchDepth, existing.options.workerCount, existing.options.connectionPoolSize > 0,
+                        options.prefetchDepth, options.workerCount, options.connectionPoolSize > 0);
+            }
+            return await(existing.pipeline);
+        }
+        try {
+            created.pipeline.complete(startPipeline(preparer, builder, options));
+        } catch (IOException | SQLException | RuntimeException e) {
+            // Everyone already waiting sees the failure, later callers try again.
+            PIPELINES.remove(key, created);
+            created.pipeline.completeExceptionally(e);
+        }
+        return await(created.pipeline);
+    }
+
+    private static Pipeline startPipeline(DatabasePreparer preparer, Builder builder, Options options) throws IOException, SQLException {
+        if (options.daemonDirectory != null) {
+            if (preparer.getFingerprint().isPresent() && builder.isPortable()) {
+                return DaemonClient.connect(options.daemonDirectory, options.daemonIdleTimeout, preparer, builder, options);
+            }
+            LOG.info("Preparers without a fingerprint and clusters on a custom network can not be shared, starting the cluster in this JVM");
+        }
+
+        Builder clusterBuilder = builder;
+        if (options.imageSnapshot) {
+            if (preparer.getFingerprint().isPresent() && builder.supportsSnapshot()) {
+                clusterBuilder = snapshotBuilder(preparer, builder, options);
+            } else {
+                LOG.info("Preparers without a fingerprint and clusters with a tmpfs data directory can not be snapshotted, preparing the template");
+            }
+        }
+        final EmbeddedPostgres pg = findOrStartCluster(new ClusterKey(clusterBuilder, 0));
+        int clusterCount = options.clusterCount;
+        if (clusterCount > 1 && pg.isReusable()) {
+            LOG.info("Reusable clusters of the same configuration are one container, not spreading databases over {} clusters", clusterCount);
+            clusterCount = 1;
+        }
+        // The other clusters start while the template is prepared in the first one.
+        final List<CompletableFuture<EmbeddedPostgres>> replicas = new ArrayList<>();
+        for (int shard = 1; shard < clusterCount; shard++) {
+            final ClusterKey key = new ClusterKey(clusterBuilder, shard);
+            replicas.add(AsyncExecutor.supply(() -> findOrStartCluster(key), AsyncExecutor.DEFAULT));
+        }
+        final long startNanos = System.nanoTime();
+        final JfrEvents.TemplatePrepare event = new JfrEvents.TemplatePrepare();
+        event.begin();
+        final String templateName;
+        try {
+            templateName = prepareTemplate(pg, clusterBuilder, preparer, options, event);
+            event.template = templateName;
+            EmbeddedPostgresListeners.fire(l -> l.templatePrepared(EmbeddedPostgresListeners.since(startNanos), null));
+        } catch (SQLException | RuntimeException e) {
+            event.failure = JfrEvents.message(e);
+            EmbeddedPostgresListeners.fire(l -> l.templatePrepared(EmbeddedPostgresListeners.since(startNanos), e));
+            throw e;
+        } finally {
+            event.preparer = preparer.getClass().getName();
+            event.commit();
+        }
+        final PrepPipeline first = new PrepPipeline(pg, templateName, options, serverMajorVersion(pg.getPostgresDatabase()));
+        if (replicas.isEmpty()) {
+            return first.start();
+        }
+        final List<PrepPipeline> shards = new ArrayList<>(Collections.singletonList(first));
+        final Path dump = Files.createTempFile("pge-" + templateName, ".dump");
+        try {
+            boolean dumped = false;
+            for (CompletableFuture<EmbeddedPostgres> replica : replicas) {
+                final EmbeddedPostgres shard = await(replica);
+                if (!isTemplate(shard, templateName)) {
+                    if (!dumped) {
+                        pg.dumpDatabase(templateName, dump);
+                        dumped = true;
+                    }
+                    copyTemplate(shard, templateName, dump, options);
+                }
+                shards.add(new PrepPipeline(shard, templateName, options, serverMajorVersion(shard.getPostgresDatabase())));
+            }
+        } finally {
+            Files.deleteIfExists(dump);
+        }
+        shards.forEach(PrepPipeline::start);
+        return new ShardedPipeline(shards);
+    }
+
+    /**
+     * @return whether the cluster already holds the template, as one started from a snapshot image does
+     */
+    private static boolean isTemplate(EmbeddedPostgres pg, String templateName) throws SQLException {
+        try (Connection c = pg.getPostgresDatabase().getConnection();
+             PreparedStatement stmt = c.prepareStatement("SELECT datistemplate FROM pg_database WHERE datname = ?")) {
+            stmt.setString(1, templateName);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() && rs.getBoolean(1);
+            }
+        }
+    }
+
+    /**
+     * Restore a template prepared in another cluster of the same configuration.
+     */
+    private static void copyTemplate(EmbeddedPostgres pg, String templateName, Path dump, Options options) throws IOException, SQLException {
+        drop(pg.getPostgresDatabase(), templateName);
+        create(pg.getPostgresDatabase(), templateName, pg.getUserName(), null, CloneStrategy.DEFAULT, 0);
+        pg.restoreDatabase(templateName, dump);
+        if (options.compactTemplate) {
+            compact(pg.getPostgresDatabase(), pg.newDataSource(pg.getUserName(), templateName, Collections.emptyMap()));
+        }
+        markTemplate(pg, templateName);
+    }
+
+    /**
+     * Find the {@link ImageSnapshot} of the preparer's template, or prepare the template in a cluster of its own
+     * and commit it.
+     *
+     * @return configuration of a cluster started from the snapshot
+     */
+    private static Builder snapshotBuilder(DatabasePreparer preparer, Builder builder, Options options) throws IOException, SQLException {
+        final ImageSnapshot snapshot = new ImageSnapshot(builder, keptTemplateName(preparer.getFingerprint().get(), options));
+        if (!snapshot.exists()) {
+            final Builder source = builder.copy().useSnapshotLayout();
+            try (EmbeddedPostgres pg = source.start()) { //NOPMD
+                prepareTemplate(pg, source, preparer, options, null);
+                snapshot.commit(pg);
+            }
+        } else {
+            LOG.info("Starting from snapshot image {}", snapshot.getImage().asCanonicalNameString());
+        }
+        return builder.copy().useSnapshotLayout().setImage(snapshot.getImage());
+    }
+
+    private static EmbeddedPostgres findOrStartCluster(ClusterKey key) throws IOException, SQLException {
+        final CompletableFuture<EmbeddedPostgres> started = new CompletableFuture<>();
+        final CompletableFuture<EmbeddedPostgres> existing = CLUSTERS.putIfAbsent(key, started);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            final EmbeddedPostgres pg = key.builder.start(); //NOPMD
+            if (pg.isReused()) {
+                AsyncExecutor.DEFAULT.execute(() -> dropStaleDatabases(pg));
+            }
+            started.complete(pg);
+        } catch (IOException | RuntimeException e) {
+            CLUSTERS.remove(key, started);
+            started.completeExceptionally(e);
+        }
+        return await(started);
+    }
+
+    /**
+     * Wait for a cluster or pipeline started by another caller, rethrowing its failure.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException, SQLException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stop the clusters of a configuration and all pipelines cloning from them. Providers still using them fail afterwards.
+     */
+    static void closeCluster(Builder builder) {
+        for (Map.Entry<PipelineKey, SharedPipeline> entry : PIPELINES.entrySet()) {
+            if (entry.getKey().builder.equals(builder) && PIPELINES.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().pipeline.thenAccept(Pipeline::close);
+            }
+        }
+        for (Map.Entry<ClusterKey, CompletableFuture<EmbeddedPostgres>> entry : CLUSTERS.entrySet()) {
+            if (entry.getKey().builder.equals(builder) && CLUSTERS.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().thenAccept(cluster -> {
+                    try {
+                        cluster.close();
+                    } catch (IOException e) {
+                        LOG.warn("Could not stop cluster {}", cluster, e);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Drop the databases and templates of earlier runs in a reused cluster, unless their run is still connected,
+     * and kept templates not used for {@link TemplateCache#MAX_UNUSED_AGE}.
+     */
+    private static void dropStaleDatabases(EmbeddedPostgres pg) {
+        final DataSource postgres = pg.newDataSource(pg.getUserName(), EmbeddedPostgres.POSTGRES, Collections.emptyMap());
+        final List<String> stale = new ArrayList<>();
+        try {
+            try (Connection c = postgres.getConnection();
+                 PreparedStatement stmt = c.prepareStatement("SELECT datname FROM pg_database WHERE datname ~ '^(pge|tmpl)_[0-9a-f]{8}_'"
+                         + " AND split_part(datname, '_', 2) NOT IN"
+                         + " (SELECT substr(application_name, ?) FROM pg_stat_activity WHERE application_name LIKE ?)")) {
+                stmt.setInt(1, EmbeddedPostgres.RUN_APPLICATION_NAME.length() + 1);
+                stmt.setString(2, EmbeddedPostgres.RUN_APPLICATION_NAME + "%");
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        stale.add(rs.getString(1));
+                    }
+                }
+            }
+            for (String dbName : stale) {
+                if (dbName.startsWith("tmpl_")) {
+                    try (Connection c = postgres.getConnection();
+                         Statement stmt = c.createStatement()) {
+                        stmt.execute(String.format("ALTER DATABASE %s WITH IS_TEMPLATE false", dbName));
+                    }
+                }
+                drop(postgres, dbName);
+            }
+            final int unused = dropUnusedTemplates(postgres);
+            LOG.info("Dropped {} databases left behind and {} unused templates in reused cluster {}", stale.size(), unused, pg);
+        } catch (SQLException e) {
+            LOG.warn("Could not drop databases left behind in reused cluster {}", pg, e);
+        }
+    }
+
+    /**
+     * @return the number of kept templates dropped
+     */
+    private static int dropUnusedTemplates(DataSource postgres) throws SQLException {
+        final Instant cutoff = Instant.now().minus(TemplateCache.MAX_UNUSED_AGE);
+        final List<String> kept = new ArrayList<>();
+        try (Connection c = postgres.getConnection();
+             Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT datname FROM pg_database WHERE datname ~ '^tmpl_[0-9a-f]{24}$'")) {
+            while (rs.next()) {
+                kept.add(rs.getString(1));
+            }
+        }
+        int dropped = 0;
+        for (String templateName : kept) {
+            // A run preparing or reusing the template holds the lock, and marks it as used before releasing it.
+            try (Connection c = postgres.getConnection()) {
+                try (PreparedStatement stmt = c.prepareStatement("SELECT pg_try_advisory_lock(hashtext(?))")) {
+                    stmt.setString(1, templateName);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (!rs.next() || !rs.getBoolean(1)) {
+                            continue;
+                        }
+                    }
+                }
+                if (lastUsed(c, templateName).map(cutoff::isAfter).orElse(true)) {
+                    try (Statement stmt = c.createStatement()) {
+                        stmt.execute(String.format("ALTER DATABASE %s WITH IS_TEMPLATE false", templateName));
+                    }
+                    drop(postgres, templateName);
+                    dropped++;
+                }
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * @return when a kept template was last prepared or reused, if it says
+     */
+    private static Optional<Instant> lastUsed(Connection c, String templateName) throws SQLException {
+        try (PreparedStatement stmt = c.prepareStatement("SELECT shobj_description(oid, 'pg_database') FROM pg_database WHERE datname = ?")) {
+            stmt.setString(1, templateName);
+            try (ResultSet rs = stmt.executeQuery()) {
+                final String comment = rs.next() ? rs.getString(1) : null;
+                if (comment == null || !comment.startsWith(TEMPLATE_LAST_USED)) {
+                    return Optional.empty();
+                }
+                return Optional.of(Instant.parse(comment.substring(TEMPLATE_LAST_USED.length())));
+            }
+        } catch (DateTimeParseException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static void markUsed(Connection c, String templateName) throws SQLException {
+        try (Statement stmt = c.createStatement()) {
+            stmt.execute(String.format("COMMENT ON DATABASE %s IS '%s%s'", templateName, TEMPLATE_LAST_USED, Instant.now()));
+        }
+    }
+
+    /**
+     * Create a new template database, run the preparer against it and mark it as a template. In a
+     * {@link Builder#setReuse(boolean) reusable} cluster or with {@link Options#setImageSnapshot(boolean) snapshots},
+     * the template of a preparer with a fingerprint is named after it and kept, later runs use it as it is.
+     *
+     * @param event recording of the preparation, marked when the template is restored from the cache; may be null
+     * @return the name of the template database
+     */
+    private static String prepareTemplate(EmbeddedPostgres pg, Builder builder, DatabasePreparer preparer, Options options,
+                                          JfrEvents.TemplatePrepare event) throws SQLException {
+        final Optional<String> fingerprint = preparer.getFingerprint();
+        if (!(pg.isReusable() || options.imageSnapshot) || !fingerprint.isPresent()) {
+            final String templateName = "tmpl_" + pg.getRunId() + "_" + RandomStringUtils.randomAlphabetic(8).toLowerCase(Locale.ENGLISH);
+            prepareTemplate(pg, builder, preparer, options, templateName, event);
+            return templateName;
+        }
+        final String templateName = keptTemplateName(fingerprint.get(), options);
+        // Runs sharing the cluster prepare a template one at a time, the lock is released with the connection.
+        try (Connection c = pg.newDataSource(pg.getUserName(), EmbeddedPostgres.POSTGRES, Collections.emptyMap()).getConnection()) {
+            try (PreparedStatement stmt = c.prepareStatement("SELECT pg_advisory_lock(hashtext(?))")) {
+                stmt.setString(1, templateName);
+                stmt.execute();
+            }
+            try (PreparedStatement stmt = c.prepareStatement("SELECT datistemplate FROM pg_database WHERE datname = ?")) {
+                stmt.setString(1, templateName);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next() && rs.getBoolean(1)) {
+                        LOG.info("Reusing template {} of an earlier run", templateName);
+                        markUsed(c, templateName);
+                        return templateName;
+                    }
+                }
+            }
+            // Left behind by a run that did not finish preparing it.
+            drop(pg.getPostgresDatabase(), templateName);
+            prepareTemplate(pg, builder, preparer, options, templateName, event);
+            markUsed(c, templateName);
+            return templateName;
+        }
+    }
+
+    private static String keptTemplateName(String preparerFingerprint, Options options) {
+        return "tmpl_" + TemplateCache.sha256(preparerFingerprint + "\ncompact=" + options.compactTemplate).substring(0, 24);
+    }
+
+    private static void prepareTemplate(EmbeddedPostgres pg, Builder builder, DatabasePreparer preparer, Options options, String templateName,
+                                        JfrEvents.TemplatePrepare event) throws SQLException {
+        create(pg.getPostgresDatabase(), templateName, pg.getUserName(), null, CloneStrategy.DEFAULT, 0);
+        final DataSource template = pg.newDataSource(pg.getUserName(), templateName, Collections.emptyMap());
+        final Optional<String> fingerprint = preparer.getFingerprint();
+        if (options.templateCacheDirectory != null && fingerprint.isPresent()) {
+            final TemplateCache cache = new TemplateCache(options.templateCacheDirectory);
+            final String key = TemplateCache.key(builder.configFingerprint(), serverVersion(pg.getPostgresDatabase()), fingerprint.get());
+            final Optional<Path> cached = cache.lookup(key);
+            if (cached.isPresent() && restoreTemplate(pg, templateName, cached.get())) {
+                LOG.info("Restored template {} from {}", templateName, cached.get());
+                if (event != null) {
+                    event.cached = true;
+                }
+            } else {
+                preparer.prepare(template);
+                try {
+                    cache.store(key, pg, templateName);
+                } catch (IOException e) {
+                    LOG.warn("Could not store template {} in {}", templateName, options.templateCacheDirectory, e);
+                }
+            }
+        } else {
+            preparer.prepare(template);
+        }
+        if (options.compactTemplate) {
+            compact(pg.getPostgresDatabase(), template);
+        }
+        markTemplate(pg, templateName);
+    }
+
+    private static void markTemplate(EmbeddedPostgres pg, String templateName) throws SQLException {
+        try (Connection c = pg.getPostgresDatabase().getConnection();
+             Statement stmt = c.createStatement()) {
+            stmt.execute(String.format("ALTER DATABASE %s WITH IS_TEMPLATE true", templateName));
+        }
+    }
+
+    /**
+     * Restore a cached template. If that fails, the template database is recreated empty so the preparer can run.
+     *
+     * @return whether the template was restored
+     */
+    private static boolean restoreTemplate(EmbeddedPostgres pg, String templateName, Path dump) throws SQLException {
+        try {
+            pg.restoreDatabase(templateName, dump);
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Could not restore template {} from {}, preparing it instead", templateName, dump, e);
+            drop(pg.getPostgresDatabase(), templateName);
+            create(pg.getPostgresDatabase(), templateName, pg.getUserName(), null, CloneStrategy.DEFAULT, 0);
+            return false;
+        }
     }
 
     /**
@@ -114,26 +572,182 @@ public class PreparedDbProvider {
      * NB: No two invocations will return the same database.
      */
     private DbInfo createNewDB() throws SQLException {
-        return dbPreparer.getNextDb();
+        return withoutPool(pipeline().getNextDb());
+    }
+
+    /**
+     * Close the connection the pipeline opened ahead, for callers handing out connection details only.
+     */
+    private static DbInfo withoutPool(DbInfo dbInfo) {
+        dbInfo.closeConnection();
+        return dbInfo;
+    }
+
+    /**
+     * @return a pool of this provider's size holding the connection the pipeline opened ahead, if any, or null if
+     * not pooling
+     */
+    private PooledDataSource pool(DbInfo dbInfo) {
+        if (connectionPoolSize == 0) {
+            withoutPool(dbInfo);
+            return null;
+        }
+        final PooledDataSource pool = new PooledDataSource(simpleDataSource(dbInfo.getUrl(), dbInfo.getUser(), dbInfo.getPassword()), connectionPoolSize);
+        if (dbInfo.connection != null) {
+            pool.adopt(dbInfo.connection);
+        }
+        return pool;
     }
 
     public ConnectionInfo createNewDatabase() throws SQLException {
         final DbInfo dbInfo = createNewDB();
-        return !dbInfo.isSuccess() ? null : new ConnectionInfo(dbInfo.getUrl(), dbInfo.getUser(), dbInfo.getPassword(), dbInfo.getHost(), dbInfo.getPort());
+        return !dbInfo.isSuccess() ? null : toConnectionInfo(dbInfo);
+    }
+
+    /**
+     * Create a new database without blocking the caller. A database already prepared by the pipeline
+     * is handed out immediately, otherwise waiting for one happens on a shared pool of daemon threads.
+     * NB: No two invocations will return the same database.
+     *
+     * @return a future completing with the database, or exceptionally with the {@link SQLException}
+     */
+    public CompletableFuture<ConnectionInfo> createNewDatabaseAsync() {
+        return createNewDatabaseAsync(AsyncExecutor.DEFAULT);
+    }
+
+    /**
+     * Like {@link #createNewDatabaseAsync()}, waiting for the pipeline on the given executor.
+     *
+     * @param executor runs the blocking wait for a database
+     * @return a future completing with the database, or exceptionally with the {@link SQLException}
+     */
+    public CompletableFuture<ConnectionInfo> createNewDatabaseAsync(Executor executor) {
+        if (!startedPipeline().isPresent()) {
+            return AsyncExecutor.supply(this::createNewDatabase, executor);
+        }
+        final DbInfo ready;
+        try {
+            ready = pipeline().pollNextDb();
+        } catch (SQLException e) {
+            final CompletableFuture<ConnectionInfo> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        if (ready != null) {
+            return CompletableFuture.completedFuture(toConnectionInfo(withoutPool(ready)));
+        }
+        return AsyncExecutor.supply(this::createNewDatabase, executor);
+    }
+
+    /**
+     * Create a new database without blocking the caller, and return it as a DataSource.
+     * See {@link #createNewDatabaseAsync()}.
+     *
+     * @return a future completing with the data source, or exceptionally with the {@link SQLException}
+     */
+    public CompletableFuture<DataSource> createDataSourceAsync() {
+        return createDataSourceAsync(AsyncExecutor.DEFAULT);
+    }
+
+    /**
+     * Like {@link #createDataSourceAsync()}, waiting for the pipeline on the given executor.
+     *
+     * @param executor runs the blocking wait for a database
+     * @return a future completing with the data source, or exceptionally with the {@link SQLException}
+     */
+    public CompletableFuture<DataSource> createDataSourceAsync(Executor executor) {
+        return createNewDatabaseAsync(executor).thenApply(this::createDataSourceFromConnectionInfo);
+    }
+
+    /**
+     * Create a new database and lease it to the caller.
+     * Closing the lease drops the database on a background thread, so
+     * long test suites do not accumulate databases in the cluster.
+     * NB: No two invocations will return the same database.
+     *
+     * @return the lease
+     * @throws SQLException SQLException if any
+     */
+    public DatabaseLease leaseDatabase() throws SQLException {
+        final Pipeline pipeline = pipeline();
+        final DbInfo dbInfo = pipeline.getNextDb();
+        final PooledDataSource pool = pool(dbInfo);
+        if (pool == null) {
+            return new DatabaseLease(toConnectionInfo(dbInfo), dbInfo.getDatabaseName(), pipeline::release);
+        }
+        pools.put(dbInfo.getUrl(), pool);
+        return new DatabaseLease(toConnectionInfo(dbInfo), dbInfo.getDatabaseName(), dbName -> {
+            pools.remove(dbInfo.getUrl(), pool);
+            pool.close();
+            pipeline.release(dbName);
+        });
+    }
+
+    /**
+     * Create a new database whose data can be reset to the prepared state, see {@link ResettableDatabase}.
+     * Resetting only touches the tables written to, which is much cheaper than cloning a new database
+     * when the schema has many tables. Closing it drops the database like {@link #leaseDatabase()}.
+     *
+     * @return the database
+     * @throws SQLException SQLException if any
+     */
+    public ResettableDatabase createResettableDatabase() throws SQLException {
+        final DatabaseLease lease = leaseDatabase();
+        try {
+            return ResettableDatabase.install(lease, createDataSourceFromConnectionInfo(lease.getConnectionInfo()));
+        } catch (SQLException | RuntimeException e) {
+            lease.close();
+            throw e;
+        }
+    }
+
+    private static ConnectionInfo toConnectionInfo(DbInfo dbInfo) {
+        return new ConnectionInfo(dbInfo.getUrl(), dbInfo.getUser(), dbInfo.getPassword(), dbInfo.getHost(), dbInfo.getPort());
+    }
+
+    /**
+     * @return number of databases handed out by this provider's cluster that have not been released
+     */
+    public long getLiveDatabaseCount() {
+        return startedPipeline().map(Pipeline::getLiveCount).orElse(0L);
+    }
+
+    /**
+     * @return number of released databases waiting to be dropped
+     */
+    public long getPendingDropCount() {
+        return startedPipeline().map(Pipeline::getPendingDropCount).orElse(0L);
+    }
+
+    /**
+     * @return number of released databases that have been dropped
+     */
+    public long getDroppedDatabaseCount() {
+        return startedPipeline().map(Pipeline::getDroppedCount).orElse(0L);
     }
 
     /**
      * Create a new Datasource given DBInfo.
      * More common usage is to call createDatasource().
+     * With {@link Options#setConnectionPoolSize(int) pooling}, every call for the same database returns the same
+     * {@link PooledDataSource}, a leased database's being closed with the lease.
      *
      * @param connectionInfo connection information
      * @return Datasource
      */
     public DataSource createDataSourceFromConnectionInfo(final ConnectionInfo connectionInfo) {
+        if (connectionPoolSize == 0) {
+            return simpleDataSource(connectionInfo.getUrl(), connectionInfo.getUser(), connectionInfo.getPassword());
+        }
+        return pools.computeIfAbsent(connectionInfo.getUrl(), url -> new PooledDataSource(
+                simpleDataSource(url, connectionInfo.getUser(), connectionInfo.getPassword()), connectionPoolSize));
+    }
+
+    private static DataSource simpleDataSource(String url, String user, String password) {
         final PGSimpleDataSource ds = new PGSimpleDataSource();
-        ds.setUrl(connectionInfo.getUrl());
-        ds.setUser(connectionInfo.getUser());
-        ds.setPassword(connectionInfo.getPassword());
+        ds.setUrl(url);
+        ds.setUser(user);
+        ds.setPassword(password);
         return ds;
     }
 
@@ -145,7 +759,13 @@ public class PreparedDbProvider {
      * @throws SQLException SQLException if any
      */
     public DataSource createDataSource() throws SQLException {
-        return createDataSourceFromConnectionInfo(createNewDatabase());
+        final DbInfo dbInfo = pipeline().getNextDb();
+        final PooledDataSource pool = pool(dbInfo);
+        if (pool == null) {
+            return simpleDataSource(dbInfo.getUrl(), dbInfo.getUser(), dbInfo.getPassword());
+        }
+        pools.put(dbInfo.getUrl(), pool);
+        return pool;
     }
 
 
@@ -158,7 +778,7 @@ public class PreparedDbProvider {
      * @throws SQLException SQLException if any
      */
     public Map<String, String> getConfigurationTweak(String dbModuleName) throws SQLException {
-        final DbInfo db = dbPreparer.getNextDb();
+        final DbInfo db = createNewDB();
         final Map<String, String> result = new HashMap<>();
         result.put("ot.db." + dbModuleName + ".uri", db.getUrl());
         result.put("ot.db." + dbModuleName + ".ds.user", db.user);
@@ -167,35 +787,116 @@ public class PreparedDbProvider {
     }
 
     /**
-     * Spawns a background thread that prepares databases ahead of time for speed, and then uses a
-     * synchronous queue to hand the prepared databases off to test cases.
+     * Hands out databases cloned from one prepared template, either from a cluster in this JVM
+     * or through the {@link PreparedDbDaemon shared daemon}.
+     */
+    interface Pipeline extends Closeable {
+        DbInfo getNextDb() throws SQLException;
+
+        /**
+         * @return a database that is ready right now, or null if the caller would have to wait
+         */
+        default DbInfo pollNextDb() throws SQLException {
+            return null;
+        }
+
+        void release(String dbName);
+
+        long getLiveCount();
+
+        long getPendingDropCount();
+
+        long getDroppedCount();
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Spawns background threads that prepare databases ahead of time for speed, and then uses a
+     * bounded queue to hand the prepared databases off to test cases.
+     * Released databases are dropped by a separate background thread.
      */
-    private static class PrepPipeline implements Runnable {
+    private static class PrepPipeline implements Pipeline, Runnable {
         private final EmbeddedPostgres pg;
-        private final SynchronousQueue<DbInfo> nextDatabase = new SynchronousQueue<>();
+        private final String templateName;
+        private final int workerCount;
+        private final CloneStrategy cloneStrategy;
+        private final int serverMajorVersion;
+        private final boolean prewarm;
+        private final BlockingQueue<DbInfo> nextDatabase;
+        private final AtomicLong live = new AtomicLong();
+        private final AtomicLong pendingDrop = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        // Cloned databases not yet taken, including those a worker is waiting to hand over through the queue.
+        private final AtomicInteger ready = new AtomicInteger();
+        private ExecutorService workers;
+        private ExecutorService dropper;
 
-        PrepPipeline(EmbeddedPostgres pg) {
+        PrepPipeline(EmbeddedPostgres pg, String templateName, Options options, int serverMajorVersion) {
             this.pg = pg;
+            this.templateName = templateName;
+            this.workerCount = options.workerCount;
+            this.cloneStrategy = options.cloneStrategy;
+            this.serverMajorVersion = serverMajorVersion;
+            this.prewarm = options.connectionPoolSize > 0;
+            this.nextDatabase = options.prefetchDepth == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(options.prefetchDepth);
+        }
+
+        String getRunId() {
+            return pg.getRunId();
+        }
+
+        /**
+         * @return the template and the cluster this pipeline clones in, as reported to listeners
+         */
+        private String name() {
+            return templateName + "@" + pg.getRunId();
+        }
+
+        private int readyChanged(int delta) {
+            final int now = ready.addAndGet(delta);
+            EmbeddedPostgresListeners.fire(l -> l.databasesReady(name(), now));
+            return now;
         }
 
         PrepPipeline start() {
-            final ExecutorService service = Executors.newSingleThreadExecutor(r -> { //NOPMD
+            final AtomicInteger threadCount = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(workerCount, r -> { //NOPMD
+                final Thread t = new Thread(r);
+                t.setDaemon(true);
+                t.setName("cluster-" + pg + "-" + templateName + "-preparer-" + threadCount.incrementAndGet());
+                return t;
+            });
+            for (int i = 0; i < workerCount; i++) {
+                workers.submit(this);
+            }
+            workers.shutdown();
+            dropper = Executors.newSingleThreadExecutor(r -> { //NOPMD
                 final Thread t = new Thread(r);
                 t.setDaemon(true);
-                t.setName("cluster-" + pg + "-preparer");
+                t.setName("cluster-" + pg + "-" + templateName + "-dropper");
                 return t;
             });
-            service.submit(this);
-            service.shutdown();
             return this;
         }
 
-        DbInfo getNextDb() throws SQLException {
+        @Override
+        public DbInfo getNextDb() throws SQLException {
             try {
+                final long startNanos = System.nanoTime();
+                final JfrEvents.DatabaseWait event = new JfrEvents.DatabaseWait();
+                event.begin();
                 final DbInfo next = nextDatabase.take();
+                final int ready = readyChanged(-1);
                 if (next.ex != null) {
                     throw new SQLException(next.ex);
                 }
+                live.incrementAndGet();
+                event.database = next.getDatabaseName();
+                event.readyDatabases = ready;
+                event.commit();
+                EmbeddedPostgresListeners.fire(l -> l.databaseAcquired(EmbeddedPostgresListeners.since(startNanos), ready));
                 return next;
             } catch (final InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -203,31 +904,227 @@ public class PreparedDbProvider {
             }
         }
 
+        @Override
+        public DbInfo pollNextDb() throws SQLException {
+            final DbInfo next = nextDatabase.poll();
+            if (next == null) {
+                return null;
+            }
+            final int ready = readyChanged(-1);
+            if (next.ex != null) {
+                throw new SQLException(next.ex);
+            }
+            live.incrementAndGet();
+            EmbeddedPostgresListeners.fire(l -> l.databaseAcquired(Duration.ZERO, ready));
+            return next;
+        }
+
+        /**
+         * Drop the database in the background, or right away if the pipeline has been closed.
+         */
+        @Override
+        public void release(String dbName) {
+            live.decrementAndGet();
+            // Counted before submitting so the drop can not finish first, and taken back if it is not submitted.
+            pendingDrop.incrementAndGet();
+            try {
+                dropper.execute(() -> {
+                    try {
+                        dropNow(dbName);
+                    } finally {
+                        pendingDrop.decrementAndGet();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                pendingDrop.decrementAndGet();
+                LOG.debug("Pipeline for {} is closed, dropping {} on the calling thread", templateName, dbName);
+                dropNow(dbName);
+            }
+        }
+
+        private void dropNow(String dbName) {
+            final long startNanos = System.nanoTime();
+            try {
+                drop(pg.getPostgresDatabase(), dbName);
+                dropped.incrementAndGet();
+                EmbeddedPostgresListeners.fire(l -> l.databaseDropped(EmbeddedPostgresListeners.since(startNanos), null));
+            } catch (SQLException e) {
+                LOG.warn("Failed to drop database {}", dbName, e);
+                EmbeddedPostgresListeners.fire(l -> l.databaseDropped(EmbeddedPostgresListeners.since(startNanos), e));
+            }
+        }
+
+        @Override
+        public long getLiveCount() {
+            return live.get();
+        }
+
+        @Override
+        public long getPendingDropCount() {
+            return pendingDrop.get();
+        }
+
+        @Override
+        public long getDroppedCount() {
+            return dropped.get();
+        }
+
+        /**
+         * Stop preparing databases. The cluster itself is left running.
+         */
+        @Override
+        public void close() {
+            workers.shutdownNow();
+            dropper.shutdown();
+            final List<DbInfo> unused = new ArrayList<>();
+            nextDatabase.drainTo(unused);
+            unused.forEach(DbInfo::closeConnection);
+            if (!unused.isEmpty()) {
+                readyChanged(-unused.size());
+            }
+        }
+
+        /**
+         * Open the first connection to a new database while it waits in the queue, for providers that pool; the
+         * provider taking the database decides the pool's size.
+         */
+        private Connection prewarm(String url) {
+            if (!prewarm) {
+                return null;
+            }
+            try {
+                return simpleDataSource(url, pg.getUserName(), pg.getPassword()).getConnection();
+            } catch (SQLException e) {
+                LOG.debug("Could not open a connection to {} ahead of time", url, e);
+                return null;
+            }
+        }
+
         @Override
         public void run() {
             while (true) {
-                final String newDbName = "pge_" + RandomStringUtils.randomAlphabetic(12).toLowerCase(Locale.ENGLISH);
+                final String newDbName = "pge_" + pg.getRunId() + "_" + RandomStringUtils.randomAlphabetic(8).toLowerCase(Locale.ENGLISH);
                 SQLException failure = null;
+                final long startNanos = System.nanoTime();
+                final JfrEvents.DatabaseClone event = new JfrEvents.DatabaseClone();
+                event.begin();
                 try {
-                    create(pg.getPostgresDatabase(), newDbName, pg.getUserName());
+                    create(pg.getPostgresDatabase(), newDbName, pg.getUserName(), templateName, cloneStrategy, serverMajorVersion);
                 } catch (SQLException e) {
                     failure = e;
                 }
+                event.database = newDbName;
+                event.template = templateName;
+                event.strategy = cloneStrategy.name();
+                event.failure = JfrEvents.message(failure);
+                event.commit();
+                final SQLException cloneFailure = failure;
+                EmbeddedPostgresListeners.fire(l -> l.databaseCloned(EmbeddedPostgresListeners.since(startNanos), cloneFailure));
+                final JfrEvents.PipelineIdle idle = new JfrEvents.PipelineIdle();
+                idle.begin();
+                readyChanged(1);
                 try {
                     if (failure == null) {
-                        nextDatabase.put(DbInfo.ok(pg.getJdbcUrl(newDbName), pg.getUserName(), pg.getPassword(), pg.getHost(), pg.getPort()));
+                        final String url = pg.getJdbcUrl(newDbName);
+                        nextDatabase.put(DbInfo.ok(url, pg.getUserName(), pg.getPassword(), pg.getHost(), pg.getPort(), newDbName, prewarm(url)));
                     } else {
                         nextDatabase.put(DbInfo.error(failure));
                     }
                 } catch (final InterruptedException e) {
+                    readyChanged(-1);
                     Thread.currentThread().interrupt();
                     return;
+                } finally {
+                    idle.template = templateName;
+                    idle.commit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands out databases from several identical clusters, each with its own {@link PrepPipeline}, always from a
+     * cluster with the fewest databases handed out; among those, one with a database ready is preferred.
+     * Released databases are routed back by the run id in their name.
+     */
+    private static class ShardedPipeline implements Pipeline {
+        private final List<PrepPipeline> shards;
+        private final Map<String, PrepPipeline> shardsByRunId = new HashMap<>();
+
+        ShardedPipeline(List<PrepPipeline> shards) {
+            this.shards = shards;
+            shards.forEach(shard -> shardsByRunId.put(shard.getRunId(), shard));
+        }
+
+        /**
+         * @return the clusters with the fewest databases handed out
+         */
+        private List<PrepPipeline> leastLoaded() {
+            final long min = shards.stream().mapToLong(PrepPipeline::getLiveCount).min().orElse(0);
+            final List<PrepPipeline> candidates = new ArrayList<>();
+            for (PrepPipeline shard : shards) {
+                if (shard.getLiveCount() <= min) {
+                    candidates.add(shard);
+                }
+            }
+            return candidates.isEmpty() ? shards : candidates;
+        }
+
+        @Override
+        public DbInfo getNextDb() throws SQLException {
+            final List<PrepPipeline> candidates = leastLoaded();
+            final DbInfo ready = poll(candidates);
+            return ready != null ? ready : candidates.get(0).getNextDb();
+        }
+
+        @Override
+        public DbInfo pollNextDb() throws SQLException {
+            return poll(leastLoaded());
+        }
+
+        private static DbInfo poll(List<PrepPipeline> candidates) throws SQLException {
+            for (PrepPipeline shard : candidates) {
+                final DbInfo ready = shard.pollNextDb();
+                if (ready != null) {
+                    return ready;
                 }
             }
+            return null;
+        }
+
+        @Override
+        public void release(String dbName) {
+            final PrepPipeline shard = shardsByRunId.get(dbName.split("_")[1]);
+            if (shard == null) {
+                LOG.warn("Database {} was not handed out by any of the clusters, not dropping it", dbName);
+                return;
+            }
+            shard.release(dbName);
+        }
+
+        @Override
+        public long getLiveCount() {
+            return shards.stream().mapToLong(PrepPipeline::getLiveCount).sum();
+        }
+
+        @Override
+        public long getPendingDropCount() {
+            return shards.stream().mapToLong(PrepPipeline::getPendingDropCount).sum();
+        }
+
+        @Override
+        public long getDroppedCount() {
+            return shards.stream().mapToLong(PrepPipeline::getDroppedCount).sum();
+        }
+
+        @Override
+        public void close() {
+            shards.forEach(PrepPipeline::close);
         }
     }
 
-    private static void create(final DataSource connectDb, final String dbName, final String userName) throws SQLException {
+    private static void create(final DataSource connectDb, final String dbName, final String userName, final String templateName,
+                               final CloneStrategy strategy, final int serverMajorVersion) throws SQLException {
         if (dbName == null) {
             throw new IllegalStateException("the database name must not be null!");
         }
@@ -235,22 +1132,75 @@ public class PreparedDbProvider {
             throw new IllegalStateException("the user name must not be null!");
         }
 
+        try (Connection c = connectDb.getConnection()) {
+            if (strategy.usesCloneCopyMethod(serverMajorVersion)) {
+                try (Statement stmt = c.createStatement()) {
+                    stmt.execute("SET file_copy_method = clone");
+                } catch (SQLException e) {
+                    LOG.debug("file_copy_method = clone not available, using a plain file copy", e);
+                }
+            }
+            try (PreparedStatement stmt = c.prepareStatement(String.format("CREATE DATABASE %s OWNER %s ENCODING = 'utf8'%s%s",
+                    dbName, userName, templateName == null ? "" : " TEMPLATE " + templateName, strategy.createDatabaseClause(serverMajorVersion)))) {
+                LOG.debug("Statement: {}", stmt);
+                stmt.execute();
+            }
+        }
+    }
+
+    /**
+     * Freeze the prepared template and flush it to disk, so that clones copy as few pages as possible
+     * and do not have to wait for the template's dirty buffers to be written out.
+     */
+    private static void compact(final DataSource connectDb, final DataSource template) throws SQLException {
+        try (Connection c = template.getConnection();
+             Statement stmt = c.createStatement()) {
+            stmt.execute("VACUUM FREEZE");
+        }
         try (Connection c = connectDb.getConnection();
-            PreparedStatement stmt = c.prepareStatement(String.format("CREATE DATABASE %s OWNER %s ENCODING = 'utf8'", dbName, userName))) {
-            LOG.debug("Statement: {}", stmt);
-            stmt.execute();
+             Statement stmt = c.createStatement()) {
+            stmt.execute("CHECKPOINT");
         }
     }
 
-    private static class ClusterKey {
+    private static String serverVersion(final DataSource connectDb) throws SQLException {
+        try (Connection c = connectDb.getConnection();
+             Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery("SHOW server_version")) {
+            rs.next();
+            return rs.getString(1);
+        }
+    }
+
+    private static int serverMajorVersion(final DataSource connectDb) throws SQLException {
+        try (Connection c = connectDb.getConnection()) {
+            return c.getMetaData().getDatabaseMajorVersion();
+        }
+    }
 
-        private final DatabasePreparer preparer;
+    private static void drop(final DataSource connectDb, final String dbName) throws SQLException {
+        try (Connection c = connectDb.getConnection()) {
+            try (PreparedStatement stmt = c.prepareStatement("SELECT pg_terminate_backend(pid) FROM pg_stat_activity WHERE datname = ? AND pid <> pg_backend_pid()")) {
+                stmt.setString(1, dbName);
+                stmt.execute();
+            }
+            try (PreparedStatement stmt = c.prepareStatement(String.format("DROP DATABASE IF EXISTS %s", dbName))) {
+                LOG.debug("Statement: {}", stmt);
+                stmt.execute();
+            }
+        }
+    }
+
+    /**
+     * Identifies one of the identical clusters of a {@link Builder} configuration; the first is shard 0.
+     */
+    private static class ClusterKey {
         private final Builder builder;
+        private final int shard;
 
-        ClusterKey(DatabasePreparer preparer, Iterable<Consumer<Builder>> customizers) {
-            this.preparer = preparer;
-            this.builder = EmbeddedPostgres.builder();
-            customizers.forEach(c -> c.accept(this.builder));
+        ClusterKey(Builder builder, int shard) {
+            this.builder = builder;
+            this.shard = shard;
         }
 
         @Override
@@ -262,23 +1212,406 @@ public class PreparedDbProvider {
                 return false;
             }
             ClusterKey that = (ClusterKey) o;
-            return Objects.equals(preparer, that.preparer) &&
-                    Objects.equals(builder, that.builder);
+            return shard == that.shard && Objects.equals(builder, that.builder);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(preparer, builder);
+            return Objects.hash(builder, shard);
+        }
+    }
+
+    /**
+     * Preparers providing a {@link DatabasePreparer#getFingerprint() fingerprint} are identified by it, so that
+     * equivalent preparers share one template. Others fall back to {@link Object#equals(Object)}.
+     */
+    private static class PipelineKey {
+
+        private final Object preparerIdentity;
+        private final Builder builder;
+        private final List<Object> pipelineOptions;
+
+        PipelineKey(DatabasePreparer preparer, Builder builder, Options options) {
+            this.preparerIdentity = preparer.getFingerprint().<Object>map(f -> f).orElse(preparer);
+            this.builder = builder;
+            this.pipelineOptions = options.pipelineIdentity();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            PipelineKey that = (PipelineKey) o;
+            return Objects.equals(preparerIdentity, that.preparerIdentity) &&
+                    Objects.equals(builder, that.builder) &&
+                    Objects.equals(pipelineOptions, that.pipelineOptions);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(preparerIdentity, builder, pipelineOptions);
+        }
+    }
+
+    /**
+     * A pipeline being started or running, with the options of the provider that started it.
+     */
+    private static class SharedPipeline {
+        private final Options options;
+        private final CompletableFuture<Pipeline> pipeline = new CompletableFuture<>();
+
+        SharedPipeline(Options options) {
+            this.options = options;
+        }
+    }
+
+    /**
+     * Tuning knobs for the pipeline that prepares databases ahead of time.
+     * Providers with an equal preparer and cluster configuration share one pipeline and template database unless
+     * they differ in options changing the template or how it is cloned ({@link #setCompactTemplate(boolean)},
+     * {@link #setTemplateCache(boolean)}, {@link #setImageSnapshot(boolean)}, {@link #setSharedDaemon(boolean)},
+     * {@link #setCloneStrategy(CloneStrategy)}, {@link #setClusterCount(int)}). {@link #setPrefetchDepth(int)} and
+     * {@link #setWorkerCount(int)} are taken from the provider that starts the pipeline, later providers asking for
+     * other values are warned about. {@link #setConnectionPoolSize(int)} and {@link #setLazy(boolean)} apply to each
+     * provider on its own.
+     */
+    public static class Options {
+        static final int DEFAULT_PREFETCH_DEPTH = 0;
+        static final int DEFAULT_WORKER_COUNT = 1;
+
+        private int prefetchDepth = DEFAULT_PREFETCH_DEPTH;
+        private int workerCount = DEFAULT_WORKER_COUNT;
+        private CloneStrategy cloneStrategy = CloneStrategy.DEFAULT;
+        private boolean compactTemplate;
+        private Path templateCacheDirectory;
+        private Path daemonDirectory;
+        private Duration daemonIdleTimeout = PreparedDbDaemon.DEFAULT_IDLE_TIMEOUT;
+        private boolean lazy;
+        private int connectionPoolSize;
+        private boolean imageSnapshot;
+        private int clusterCount = 1;
+
+        Options() {
+        }
+
+        /**
+         * Number of cloned databases kept ready to be handed out. With 0, the default, each worker clones one
+         * database and waits until it is handed out. A pipeline shared with an earlier provider keeps its depth.
+         * @param prefetchDepth size of the ready buffer, at least 0
+         * @return options
+         */
+        public Options setPrefetchDepth(int prefetchDepth) {
+            if (prefetchDepth < 0) {
+                throw new IllegalArgumentException("Prefetch depth must not be negative.");
+            }
+            this.prefetchDepth = prefetchDepth;
+            return this;
+        }
+
+        /**
+         * Number of threads concurrently creating databases to fill the ready buffer. A pipeline shared with an
+         * earlier provider keeps its workers.
+         * @param workerCount number of worker threads, at least 1
+         * @return options
+         */
+        public Options setWorkerCount(int workerCount) {
+            if (workerCount < 1) {
+                throw new IllegalArgumentException("Worker count must be at least 1.");
+            }
+            this.workerCount = workerCount;
+            return this;
+        }
+
+        /**
+         * How new databases are copied from the prepared template. Providers asking for different strategies get
+         * pipelines and template databases of their own.
+         * @param cloneStrategy the strategy
+         * @return options
+         */
+        public Options setCloneStrategy(CloneStrategy cloneStrategy) {
+            this.cloneStrategy = Objects.requireNonNull(cloneStrategy);
+            return this;
+        }
+
+        /**
+         * Run <code>VACUUM FREEZE</code> and a <code>CHECKPOINT</code> after the preparer has run, so that
+         * each clone has fewer pages to copy. Most useful for templates loaded with a lot of data.
+         * @param compactTemplate whether to compact the template
+         * @return options
+         */
+        public Options setCompactTemplate(boolean compactTemplate) {
+            this.compactTemplate = compactTemplate;
+            return this;
+        }
+
+        /**
+         * Keep a <code>pg_dump</code> of each prepared template in the default cache directory
+         * (<code>$XDG_CACHE_HOME/otj-pg-embedded</code>, falling back to <code>~/.cache/otj-pg-embedded</code>),
+         * and restore from it in later runs instead of invoking the preparer again.
+         * Only preparers providing a {@link DatabasePreparer#getFingerprint() fingerprint} are cached.
+         * NB: only the template database itself is cached; cluster-wide objects such as roles are not.
+         * @param templateCache whether to use the template cache
+         * @return options
+         */
+        public Options setTemplateCache(boolean templateCache) {
+            return setTemplateCacheDirectory(templateCache ? TemplateCache.DEFAULT_DIRECTORY : null);
+        }
+
+        /**
+         * Like {@link #setTemplateCache(boolean)}, with a custom cache directory.
+         * @param templateCacheDirectory directory holding the cached templates, or null to disable the cache
+         * @return options
+         */
+        public Options setTemplateCacheDirectory(Path templateCacheDirectory) {
+            this.templateCacheDirectory = templateCacheDirectory;
+            return this;
+        }
+
+        /**
+         * Obtain databases from a daemon process shared by all JVMs on this machine (surefire forks, Gradle
+         * workers, IDE runs), which owns the clusters and templates, instead of starting them in this JVM.
+         * The first JVM to ask starts the daemon; it stops once unused for {@link #setSharedDaemonIdleTimeout(Duration)}.
+         * Only preparers providing a {@link DatabasePreparer#getFingerprint() fingerprint} are shared; the preparer
+         * still runs in the JVM that first asks for its template.
+         * @param sharedDaemon whether to use the shared daemon
+         * @return options
+         */
+        public Options setSharedDaemon(boolean sharedDaemon) {
+            return setSharedDaemonDirectory(sharedDaemon ? PreparedDbDaemon.DEFAULT_DIRECTORY : null);
+        }
+
+        /**
+         * Like {@link #setSharedDaemon(boolean)}, with a custom directory for the daemon's port file and log.
+         * JVMs using the same directory share a daemon.
+         * @param daemonDirectory directory of the daemon, or null to start clusters in this JVM
+         * @return options
+         */
+        public Options setSharedDaemonDirectory(Path daemonDirectory) {
+            this.daemonDirectory = daemonDirectory;
+            return this;
+        }
+
+        /**
+         * How long a cluster in a daemon started by this JVM is kept running after its last client disconnected.
+         * The daemon itself exits when it has had no clusters and no clients for as long.
+         * @param daemonIdleTimeout idle timeout, positive
+         * @return options
+         */
+        public Options setSharedDaemonIdleTimeout(Duration daemonIdleTimeout) {
+            Objects.requireNonNull(daemonIdleTimeout);
+            if (daemonIdleTimeout.isNegative() || daemonIdleTimeout.isZero()) {
+                throw new IllegalArgumentException("Idle timeout must be positive.");
+            }
+            this.daemonIdleTimeout = daemonIdleTimeout;
+            return this;
+        }
+
+        /**
+         * Return from {@link PreparedDbProvider#forPreparer} immediately and start the cluster and prepare the
+         * template in the background. The first call needing a database waits for it, and fails with an
+         * {@link SQLException} if starting or preparing failed. Does not affect which providers share a pipeline.
+         * @param lazy whether to start in the background
+         * @return options
+         */
+        public Options setLazy(boolean lazy) {
+            this.lazy = lazy;
+            return this;
+        }
+
+        /**
+         * Hand out databases as {@link PooledDataSource}s of at most this many connections. The first one is opened
+         * while the database waits to be handed out, if the provider starting the pipeline pools too. A leased
+         * database's pool is closed with the lease.
+         * @param connectionPoolSize maximum connections per database, 0 (the default) to not pool
+         * @return options
+         */
+        public Options setConnectionPoolSize(int connectionPoolSize) {
+            if (connectionPoolSize < 0) {
+                throw new IllegalArgumentException("Pool size must not be negative.");
+            }
+            this.connectionPoolSize = connectionPoolSize;
+            return this;
+        }
+
+        /**
+         * Commit the cluster to a local Docker image once the template is prepared, and start later runs from that
+         * image instead of running the preparer. Images are tagged by the cluster configuration and the preparer's
+         * {@link DatabasePreparer#getFingerprint() fingerprint}; the five newest per configuration are kept. Only
+         * preparers with a fingerprint and clusters without a tmpfs data directory are snapshotted. The first run
+         * prepares the template in a separate cluster, which it then discards.
+         * @param imageSnapshot whether to snapshot prepared clusters
+         * @return options
+         */
+        public Options setImageSnapshot(boolean imageSnapshot) {
+            this.imageSnapshot = imageSnapshot;
+            return this;
+        }
+
+        /**
+         * Spread databases over this many identical clusters, for heavily parallel test runs where one server's
+         * connections or CPU become the bottleneck. The template is prepared in the first cluster and copied to the
+         * others with <code>pg_dump</code>, or found in them when they start from a
+         * {@link #setImageSnapshot(boolean) snapshot image}. Each new database comes from the cluster with the fewest
+         * databases handed out, so use {@link ConnectionInfo#getHost()} and {@link ConnectionInfo#getPort()} of
+         * the database rather than assuming one server. Every cluster gets its own prefetch buffer and workers.
+         * NB: cluster-wide objects created by the preparer, such as roles, only exist in the first cluster.
+         * Reusable clusters are not spread. Providers asking for different counts get pipelines of their own.
+         * @param clusterCount number of clusters, at least 1
+         * @return options
+         */
+        public Options setClusterCount(int clusterCount) {
+            if (clusterCount < 1) {
+                throw new IllegalArgumentException("Cluster count must be at least 1.");
+            }
+            this.clusterCount = clusterCount;
+            return this;
+        }
+
+        public int getPrefetchDepth() {
+            return prefetchDepth;
+        }
+
+        public int getWorkerCount() {
+            return workerCount;
+        }
+
+        public CloneStrategy getCloneStrategy() {
+            return cloneStrategy;
+        }
+
+        public boolean isCompactTemplate() {
+            return compactTemplate;
+        }
+
+        public Optional<Path> getTemplateCacheDirectory() {
+            return Optional.ofNullable(templateCacheDirectory);
+        }
+
+        public Optional<Path> getSharedDaemonDirectory() {
+            return Optional.ofNullable(daemonDirectory);
+        }
+
+        public Duration getSharedDaemonIdleTimeout() {
+            return daemonIdleTimeout;
+        }
+
+        public boolean isLazy() {
+            return lazy;
+        }
+
+        public int getConnectionPoolSize() {
+            return connectionPoolSize;
+        }
+
+        public boolean isImageSnapshot() {
+            return imageSnapshot;
+        }
+
+        public int getClusterCount() {
+            return clusterCount;
+        }
+
+        /**
+         * @return the options that change the template, where it lives or how it is cloned, see the class comment
+         */
+        List<Object> pipelineIdentity() {
+            return Arrays.asList(compactTemplate, templateCacheDirectory, imageSnapshot, daemonDirectory, cloneStrategy, clusterCount);
+        }
+
+        /**
+         * @return the options a shared pipeline keeps from the provider that started it
+         */
+        List<Object> tuningIdentity() {
+            return Arrays.asList(prefetchDepth, workerCount, connectionPoolSize > 0);
+        }
+
+        Options copy() {
+            return new Options()
+                    .setPrefetchDepth(prefetchDepth)
+                    .setWorkerCount(workerCount)
+                    .setCloneStrategy(cloneStrategy)
+                    .setCompactTemplate(compactTemplate)
+                    .setTemplateCacheDirectory(templateCacheDirectory)
+                    .setSharedDaemonDirectory(daemonDirectory)
+                    .setSharedDaemonIdleTimeout(daemonIdleTimeout)
+                    .setLazy(lazy)
+                    .setConnectionPoolSize(connectionPoolSize)
+                    .setImageSnapshot(imageSnapshot)
+                    .setClusterCount(clusterCount);
+        }
+
+        /**
+         * Write the options that apply inside the shared daemon as properties, see {@link #load(Properties)}.
+         */
+        void store(Properties properties) {
+            properties.setProperty("options.prefetchDepth", Integer.toString(prefetchDepth));
+            properties.setProperty("options.workerCount", Integer.toString(workerCount));
+            properties.setProperty("options.cloneStrategy", cloneStrategy.name());
+            properties.setProperty("options.compactTemplate", Boolean.toString(compactTemplate));
+            properties.setProperty("options.imageSnapshot", Boolean.toString(imageSnapshot));
+            properties.setProperty("options.clusterCount", Integer.toString(clusterCount));
+            if (templateCacheDirectory != null) {
+                properties.setProperty("options.templateCacheDirectory", templateCacheDirectory.toString());
+            }
+        }
+
+        static Options load(Properties properties) {
+            final String cacheDirectory = properties.getProperty("options.templateCacheDirectory");
+            return new Options()
+                    .setPrefetchDepth(Integer.parseInt(properties.getProperty("options.prefetchDepth")))
+                    .setWorkerCount(Integer.parseInt(properties.getProperty("options.workerCount")))
+                    .setCloneStrategy(CloneStrategy.valueOf(properties.getProperty("options.cloneStrategy")))
+                    .setCompactTemplate(Boolean.parseBoolean(properties.getProperty("options.compactTemplate")))
+                    .setImageSnapshot(Boolean.parseBoolean(properties.getProperty("options.imageSnapshot")))
+                    .setClusterCount(Integer.parseInt(properties.getProperty("options.clusterCount", "1")))
+                    .setTemplateCacheDirectory(cacheDirectory == null ? null : Paths.get(cacheDirectory));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Options that = (Options) o;
+            return prefetchDepth == that.prefetchDepth && workerCount == that.workerCount &&
+                    cloneStrategy == that.cloneStrategy && compactTemplate == that.compactTemplate &&
+                    Objects.equals(templateCacheDirectory, that.templateCacheDirectory) &&
+                    Objects.equals(daemonDirectory, that.daemonDirectory) &&
+                    Objects.equals(daemonIdleTimeout, that.daemonIdleTimeout) &&
+                    connectionPoolSize == that.connectionPoolSize && imageSnapshot == that.imageSnapshot &&
+                    clusterCount == that.clusterCount;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(prefetchDepth, workerCount, cloneStrategy, compactTemplate, templateCacheDirectory,
+                    daemonDirectory, daemonIdleTimeout, connectionPoolSize, imageSnapshot, clusterCount);
         }
     }
 
     public static class DbInfo {
         public static DbInfo ok(final String url, final String user, final String password, final String host, final int port) {
-            return new DbInfo(url, user, password, null, host, port);
+            return new DbInfo(url, user, password, null, host, port, null, null);
+        }
+
+        static DbInfo ok(final String url, final String user, final String password, final String host, final int port, final String databaseName) {
+            return ok(url, user, password, host, port, databaseName, null);
+        }
+
+        static DbInfo ok(final String url, final String user, final String password, final String host, final int port, final String databaseName,
+                         final Connection connection) {
+            return new DbInfo(url, user, password, null, host, port, databaseName, connection);
         }
 
         public static DbInfo error(SQLException e) {
-            return new DbInfo(null, null, null, e, null, -1);
+            return new DbInfo(null, null, null, e, null, -1, null, null);
         }
 
         private final String url;
@@ -287,14 +1620,36 @@ public class PreparedDbProvider {
         private final SQLException ex;
         private final String host;
         private final int port;
+        private final String databaseName;
+        private final Connection connection;
 
-        private DbInfo(final String url, final String user, final String password, final SQLException e, final String host, final int port) {
+        private DbInfo(final String url, final String user, final String password, final SQLException e, final String host, final int port, final String databaseName,
+                       final Connection connection) {
             this.url = url;
             this.user = user;
             this.password = password;
             this.ex = e;
             this.host = host;
             this.port = port;
+            this.databaseName = databaseName;
+            this.connection = connection;
+        }
+
+        /**
+         * Close the connection opened ahead of time, if nobody took it.
+         */
+        void closeConnection() {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    LOG.debug("Could not close connection to {}", url, e);
+                }
+            }
+        }
+
+        public String getDatabaseName() {
+            return databaseName;
         }
 
         public String getHost() {
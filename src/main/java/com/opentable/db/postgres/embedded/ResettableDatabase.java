@@ -0,0 +1,170 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A database handed out by {@link PreparedDbProvider#createResettableDatabase()} that can be returned to
+ * its freshly prepared state with {@link #reset()}, so one database can serve many tests that really commit.
+ * <p>
+ * Statement-level triggers record which tables were written to in the <code>pge_reset</code> schema.
+ * A reset truncates only those tables, plus the tables referencing them through foreign keys and their
+ * partitions or children, copies back the rows they held when the database was created and restores all
+ * sequences. Tables created after the database was handed out are not tracked, and schema changes are not undone.
+ */
+public final class ResettableDatabase implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ResettableDatabase.class);
+
+    static final String SCHEMA = "pge_reset";
+    private static final int GENERATED_COLUMNS_MIN_VERSION = 12;
+
+    private final DatabaseLease lease;
+    private final DataSource dataSource;
+
+    private ResettableDatabase(DatabaseLease lease, DataSource dataSource) {
+        this.lease = lease;
+        this.dataSource = dataSource;
+    }
+
+    static ResettableDatabase install(DatabaseLease lease, DataSource dataSource) throws SQLException {
+        try (Connection c = dataSource.getConnection()) {
+            c.setAutoCommit(false);
+            final boolean generatedColumns = c.getMetaData().getDatabaseMajorVersion() >= GENERATED_COLUMNS_MIN_VERSION;
+            try (Statement stmt = c.createStatement()) {
+                stmt.execute("CREATE SCHEMA " + SCHEMA);
+                stmt.execute("CREATE TABLE " + SCHEMA + ".dirty (relid oid PRIMARY KEY)");
+                stmt.execute("CREATE TABLE " + SCHEMA + ".seeds (relid oid PRIMARY KEY, snapshot text NOT NULL, columns text NOT NULL)");
+                stmt.execute("CREATE TABLE " + SCHEMA + ".sequences AS"
+                        + " SELECT format('%I.%I', schemaname, sequencename)::regclass AS seq, last_value, start_value"
+                        + " FROM pg_sequences WHERE schemaname <> '" + SCHEMA + "'");
+                stmt.execute("CREATE FUNCTION " + SCHEMA + ".mark() RETURNS trigger LANGUAGE plpgsql AS $$ BEGIN"
+                        + " IF NOT EXISTS (SELECT 1 FROM " + SCHEMA + ".dirty WHERE relid = TG_RELID) THEN"
+                        + " INSERT INTO " + SCHEMA + ".dirty VALUES (TG_RELID) ON CONFLICT DO NOTHING;"
+                        + " END IF; RETURN NULL; END $$");
+                final List<String[]> tables = new ArrayList<>();
+                try (ResultSet rs = stmt.executeQuery("SELECT c.oid, c.oid::regclass::text, c.relkind FROM pg_class c"
+                        + " JOIN pg_namespace n ON n.oid = c.relnamespace"
+                        + " WHERE c.relkind IN ('r', 'p') AND c.relpersistence <> 't'"
+                        + " AND n.nspname NOT IN ('pg_catalog', 'information_schema', '" + SCHEMA + "')"
+                        + " AND n.nspname NOT LIKE 'pg_toast%'")) {
+                    while (rs.next()) {
+                        tables.add(new String[] {rs.getString(1), rs.getString(2), rs.getString(3)});
+                    }
+                }
+                for (String[] table : tables) {
+                    stmt.execute(String.format("CREATE TRIGGER pge_reset_dirty AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON %s"
+                            + " FOR EACH STATEMENT EXECUTE PROCEDURE %s.mark()", table[1], SCHEMA));
+                    // Partitioned tables hold no rows themselves, their partitions are snapshotted instead.
+                    if ("r".equals(table[2])) {
+                        snapshot(stmt, table[0], table[1], generatedColumns);
+                    }
+                }
+                LOG.debug("Tracking {} tables in {}", tables.size(), lease.getDatabaseName());
+            }
+            c.commit();
+        }
+        return new ResettableDatabase(lease, dataSource);
+    }
+
+    private static void snapshot(Statement stmt, String oid, String table, boolean generatedColumns) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("SELECT EXISTS (SELECT 1 FROM ONLY " + table + ")")) {
+            rs.next();
+            if (!rs.getBoolean(1)) {
+                return;
+            }
+        }
+        final String columns;
+        try (ResultSet rs = stmt.executeQuery("SELECT string_agg(quote_ident(attname), ', ' ORDER BY attnum) FROM pg_attribute"
+                + " WHERE attrelid = " + oid + " AND attnum > 0 AND NOT attisdropped"
+                + (generatedColumns ? " AND attgenerated = ''" : ""))) {
+            rs.next();
+            columns = rs.getString(1);
+        }
+        final String snapshot = SCHEMA + ".s_" + oid;
+        stmt.execute(String.format("CREATE TABLE %s AS SELECT %s FROM ONLY %s", snapshot, columns, table));
+        stmt.execute(String.format("INSERT INTO %s.seeds VALUES (%s, '%s', '%s')", SCHEMA, oid, snapshot, columns.replace("'", "''")));
+    }
+
+    public ConnectionInfo getConnectionInfo() {
+        return lease.getConnectionInfo();
+    }
+
+    public String getDatabaseName() {
+        return lease.getDatabaseName();
+    }
+
+    /**
+     * Undo all data changes made since the database was handed out (or last reset).
+     * Must not run concurrently with other work on this database.
+     * @throws SQLException if the reset fails
+     */
+    public void reset() throws SQLException {
+        if (lease.isClosed()) {
+            throw new IllegalStateException("database " + getDatabaseName() + " already closed");
+        }
+        try (Connection c = dataSource.getConnection()) {
+            c.setAutoCommit(false);
+            try (Statement stmt = c.createStatement()) {
+                // Skip user triggers, our own tracking trigger and foreign key checks while restoring.
+                stmt.execute("SET LOCAL session_replication_role = replica");
+                final List<String> truncate = new ArrayList<>();
+                final List<String> reseed = new ArrayList<>();
+                try (ResultSet rs = stmt.executeQuery("WITH RECURSIVE dependents(parent, child) AS ("
+                        + " SELECT confrelid, conrelid FROM pg_constraint WHERE contype = 'f'"
+                        + " UNION ALL SELECT inhparent, inhrelid FROM pg_inherits),"
+                        + " affected(relid) AS (SELECT relid FROM " + SCHEMA + ".dirty"
+                        + " UNION SELECT d.child FROM dependents d JOIN affected a ON d.parent = a.relid)"
+                        + " SELECT a.relid::regclass::text, s.snapshot, s.columns FROM affected a"
+                        + " LEFT JOIN " + SCHEMA + ".seeds s ON s.relid = a.relid")) {
+                    while (rs.next()) {
+                        truncate.add(rs.getString(1));
+                        if (rs.getString(2) != null) {
+                            reseed.add(String.format("INSERT INTO %s (%s) OVERRIDING SYSTEM VALUE SELECT %s FROM %s",
+                                    rs.getString(1), rs.getString(3), rs.getString(3), rs.getString(2)));
+                        }
+                    }
+                }
+                if (!truncate.isEmpty()) {
+                    stmt.execute("TRUNCATE " + String.join(", ", truncate));
+                    for (String insert : reseed) {
+                        stmt.execute(insert);
+                    }
+                    stmt.execute("DELETE FROM " + SCHEMA + ".dirty");
+                }
+                stmt.execute("SELECT setval(seq, coalesce(last_value, start_value), last_value IS NOT NULL) FROM " + SCHEMA + ".sequences");
+                LOG.debug("Reset {} tables in {}", truncate.size(), getDatabaseName());
+            }
+            c.commit();
+        }
+    }
+
+    /**
+     * Release the database, see {@link DatabaseLease#close()}.
+     */
+    @Override
+    public void close() {
+        lease.close();
+    }
+}
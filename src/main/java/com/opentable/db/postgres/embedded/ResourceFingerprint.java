@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Builds a {@link DatabasePreparer#getFingerprint() fingerprint} from labelled values and the contents
+ * of resource trees, either on the classpath (directories and jars) or on the file system.
+ * Resources are hashed by path and content in a stable order, so the result only changes
+ * when a resource is added, removed, renamed or modified.
+ */
+final class ResourceFingerprint {
+    private final List<String> parts = new ArrayList<>();
+
+    ResourceFingerprint add(String label, Object value) {
+        parts.add(label + "=" + value);
+        return this;
+    }
+
+    /**
+     * Add every resource at or below a classpath location, as seen by the given class loader.
+     */
+    ResourceFingerprint addClasspathTree(ClassLoader classLoader, String location) throws IOException {
+        final String normalized = trimSlashes(location);
+        final List<String> entries = new ArrayList<>();
+        final Enumeration<URL> roots = classLoader.getResources(normalized);
+        while (roots.hasMoreElements()) {
+            final URL root = roots.nextElement();
+            if ("file".equals(root.getProtocol())) {
+                try {
+                    entries.addAll(hashFileTree(Paths.get(root.toURI()), normalized));
+                } catch (URISyntaxException e) {
+                    throw new IOException(e);
+                }
+            } else if ("jar".equals(root.getProtocol())) {
+                entries.addAll(hashJarTree(root, normalized));
+            } else {
+                throw new IOException("Unsupported resource location " + root);
+            }
+        }
+        Collections.sort(entries);
+        parts.add("classpath:" + normalized + "=" + entries);
+        return this;
+    }
+
+    /**
+     * Add every file at or below a file system location.
+     */
+    ResourceFingerprint addFileTree(Path root) throws IOException {
+        final List<String> entries = Files.exists(root) ? hashFileTree(root, "") : Collections.emptyList();
+        Collections.sort(entries);
+        parts.add("filesystem:" + root.toAbsolutePath() + "=" + entries);
+        return this;
+    }
+
+    String build() {
+        return TemplateCache.sha256(String.join("\n", parts));
+    }
+
+    private static List<String> hashFileTree(Path root, String prefix) throws IOException {
+        if (Files.isRegularFile(root)) {
+            return Collections.singletonList(prefix + ":" + TemplateCache.sha256(Files.readAllBytes(root)));
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+            final List<Path> regularFiles = files.filter(Files::isRegularFile).collect(Collectors.toList());
+            final List<String> result = new ArrayList<>();
+            for (Path file : regularFiles) {
+                final String relative = root.relativize(file).toString().replace('\\', '/');
+                result.add(prefix + "/" + relative + ":" + TemplateCache.sha256(Files.readAllBytes(file)));
+            }
+            return result;
+        }
+    }
+
+    private static List<String> hashJarTree(URL root, String location) throws IOException {
+        final JarURLConnection connection = (JarURLConnection) root.openConnection();
+        connection.setUseCaches(false);
+        final List<String> result = new ArrayList<>();
+        try (JarFile jar = connection.getJarFile()) {
+            final Enumeration<JarEntry> jarEntries = jar.entries();
+            while (jarEntries.hasMoreElements()) {
+                final JarEntry entry = jarEntries.nextElement();
+                final String name = entry.getName();
+                if (entry.isDirectory() || !(name.equals(location) || name.startsWith(location + "/"))) {
+                    continue;
+                }
+                try (InputStream in = jar.getInputStream(entry)) {
+                    result.add(name + ":" + TemplateCache.sha256(in.readAllBytes()));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String trimSlashes(String location) {
+        String result = location;
+        while (result.startsWith("/")) {
+            result = result.substring(1);
+        }
+        while (result.endsWith("/")) {
+            result = result.substring(0, result.length() - 1);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single-connection {@link DataSource} whose work is rolled back when it is closed.
+ * <p>
+ * The connection is opened inside a transaction. Calls to {@link Connection#commit()} and
+ * {@link Connection#rollback()} by the code under test are turned into savepoints within that
+ * transaction, {@link Connection#close()} is ignored and every {@link #getConnection()} returns the same
+ * connection, so code that "commits" still sees its own data but nothing outlives {@link #close()}.
+ * <p>
+ * Limitations: SQL-level <code>COMMIT</code>/<code>ROLLBACK</code> statements escape the transaction, changing the
+ * isolation level or read-only flag is ignored, and a failing statement aborts the transaction until the code under
+ * test rolls back, even if it asked for auto-commit.
+ */
+public final class RollbackDataSource implements DataSource, AutoCloseable {
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(RollbackDataSource.class);
+
+    private final DataSource target;
+    private final Connection connection;
+    private final Connection proxy;
+
+    private RollbackDataSource(DataSource target, Connection connection) {
+        this.target = target;
+        this.connection = connection;
+        this.proxy = (Connection) Proxy.newProxyInstance(RollbackDataSource.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, new TransactionHandler());
+    }
+
+    /**
+     * Open a connection to the target and start the transaction that will be rolled back.
+     * @param target the test database
+     * @return the data source
+     * @throws SQLException if the connection can not be opened
+     */
+    public static RollbackDataSource begin(DataSource target) throws SQLException {
+        final Connection connection = target.getConnection();
+        try {
+            connection.setAutoCommit(false);
+            return new RollbackDataSource(target, connection);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection() {
+        return proxy;
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) {
+        return proxy;
+    }
+
+    /**
+     * Roll back everything done through this data source and close the connection.
+     * @throws SQLException if the rollback fails
+     */
+    @Override
+    public void close() throws SQLException {
+        try {
+            connection.rollback();
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return target.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        target.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        target.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return target.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return target.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return target.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || target.isWrapperFor(iface);
+    }
+
+    private final class TransactionHandler implements InvocationHandler {
+        private boolean autoCommit = true;
+        private Savepoint savepoint;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final boolean noArgs = args == null || args.length == 0;
+            switch (method.getName()) {
+                case "close":
+                    return null;
+                case "getAutoCommit":
+                    return autoCommit;
+                case "setAutoCommit":
+                    autoCommit = (Boolean) args[0];
+                    return null;
+                case "setTransactionIsolation":
+                case "setReadOnly":
+                    LOG.debug("Ignoring {} inside a rolled back test transaction", method.getName());
+                    return null;
+                case "commit":
+                    if (savepoint != null) {
+                        connection.releaseSavepoint(savepoint);
+                    }
+                    savepoint = connection.setSavepoint();
+                    return null;
+                case "rollback":
+                    if (noArgs) {
+                        if (savepoint == null) {
+                            savepoint = connection.setSavepoint();
+                        }
+                        connection.rollback(savepoint);
+                        return null;
+                    }
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            if (savepoint == null && !"isClosed".equals(method.getName())) {
+                // First use: mark where a rollback by the code under test returns to.
+                savepoint = connection.setSavepoint();
+            }
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
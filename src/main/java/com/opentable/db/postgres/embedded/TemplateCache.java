@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk cache of prepared template databases, stored as <code>pg_dump</code> archives.
+ * Entries are keyed by the cluster configuration, the server version and the preparer's
+ * {@link DatabasePreparer#getFingerprint() fingerprint}, and survive across JVM runs.
+ * Entries not used for {@link #MAX_UNUSED_AGE} are removed.
+ */
+final class TemplateCache {
+    private static final Logger LOG = LoggerFactory.getLogger(TemplateCache.class);
+
+    static final Path DEFAULT_DIRECTORY = defaultDirectory();
+    static final Duration MAX_UNUSED_AGE = Duration.ofDays(30);
+    private static final String SUFFIX = ".dump";
+
+    private final Path directory;
+
+    TemplateCache(Path directory) {
+        this.directory = directory;
+    }
+
+    private static Path defaultDirectory() {
+        final String xdgCache = System.getenv("XDG_CACHE_HOME");
+        final Path base = xdgCache != null ? Paths.get(xdgCache) : Paths.get(System.getProperty("user.home"), ".cache");
+        return base.resolve("otj-pg-embedded");
+    }
+
+    static String key(String clusterFingerprint, String serverVersion, String preparerFingerprint) {
+        return sha256(clusterFingerprint + "\n" + serverVersion + "\n" + preparerFingerprint);
+    }
+
+    static String sha256(String value) {
+        return sha256(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String sha256(byte[] value) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(value)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param key cache key
+     * @return the dump for this key, if one has been stored
+     */
+    Optional<Path> lookup(String key) {
+        final Path entry = directory.resolve(key + SUFFIX);
+        if (!Files.isRegularFile(entry)) {
+            return Optional.empty();
+        }
+        try {
+            Files.setLastModifiedTime(entry, FileTime.from(Instant.now()));
+        } catch (IOException e) {
+            LOG.debug("Could not touch {}", entry, e);
+        }
+        return Optional.of(entry);
+    }
+
+    /**
+     * Dump a prepared template into the cache. The entry only becomes visible once complete,
+     * so concurrent JVMs never see a partial dump.
+     */
+    void store(String key, EmbeddedPostgres pg, String templateName) throws IOException {
+        Files.createDirectories(directory);
+        final Path tmp = Files.createTempFile(directory, key, ".tmp");
+        try {
+            pg.dumpDatabase(templateName, tmp);
+            Files.move(tmp, directory.resolve(key + SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        prune();
+    }
+
+    private void prune() {
+        final Instant cutoff = Instant.now().minus(MAX_UNUSED_AGE);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path entry : entries) {
+                if (Files.getLastModifiedTime(entry).toInstant().isBefore(cutoff)) {
+                    LOG.debug("Removing unused template cache entry {}", entry);
+                    Files.deleteIfExists(entry);
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("Could not prune template cache {}", directory, e);
+        }
+    }
+}
@@ -13,18 +13,26 @@
  */
 package com.opentable.db.postgres.junit;
 
+import java.sql.SQLException;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 
 import javax.sql.DataSource;
 
+import org.junit.Rule;
 import org.junit.rules.ExternalResource;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.junit.runners.model.TestClass;
 
 import com.opentable.db.postgres.embedded.ConnectionInfo;
+import com.opentable.db.postgres.embedded.DatabaseLease;
 import com.opentable.db.postgres.embedded.DatabasePreparer;
 import com.opentable.db.postgres.embedded.EmbeddedPostgres;
 import com.opentable.db.postgres.embedded.PreparedDbProvider;
+import com.opentable.db.postgres.embedded.RollbackDataSource;
 
 public class PreparedDbRule extends ExternalResource {
 
@@ -32,8 +40,13 @@ public class PreparedDbRule extends ExternalResource {
     private volatile DataSource dataSource;
     private volatile PreparedDbProvider provider;
     private volatile ConnectionInfo connectionInfo;
+    private volatile DatabaseLease lease;
+    private volatile RollbackDataSource transaction;
+    private volatile boolean rollbackAfterEachTest;
+    private final TestRule eachTest = new EachTest();
 
     private final List<Consumer<EmbeddedPostgres.Builder>> builderCustomizers = new CopyOnWriteArrayList<>();
+    private final List<Consumer<PreparedDbProvider.Options>> providerCustomizers = new CopyOnWriteArrayList<>();
 
     protected PreparedDbRule(DatabasePreparer preparer) {
         if (preparer == null) {
@@ -50,15 +63,122 @@ public class PreparedDbRule extends ExternalResource {
         return this;
     }
 
+    public PreparedDbRule customizeProvider(Consumer<PreparedDbProvider.Options> customizer) {
+        if (dataSource != null) {
+            throw new AssertionError("already started");
+        }
+        providerCustomizers.add(customizer);
+        return this;
+    }
+
+    /**
+     * Run each test method inside a transaction on a single connection that is rolled back afterwards.
+     * {@link #getTestDatabase()} returns that connection's {@link RollbackDataSource} while a test runs,
+     * and commits by the code under test become savepoints.
+     * <p>
+     * Registered as a <code>@Rule</code> this rule does so by itself. A <code>@ClassRule</code> only sees the
+     * class, so it also needs {@link #eachTest()} registered as a <code>@Rule</code>, and fails the class if it is not.
+     */
+    public PreparedDbRule rollbackAfterEachTest() {
+        if (dataSource != null) {
+            throw new AssertionError("already started");
+        }
+        rollbackAfterEachTest = true;
+        return this;
+    }
+
+    /**
+     * The per-test half of {@link #rollbackAfterEachTest()} for a rule registered as a <code>@ClassRule</code>:
+     * <code>@Rule public TestRule tx = db.eachTest();</code>
+     */
+    public TestRule eachTest() {
+        return eachTest;
+    }
+
+    @Override
+    public Statement apply(Statement base, Description description) {
+        if (!rollbackAfterEachTest) {
+            return super.apply(base, description);
+        }
+        if (description.isTest()) {
+            return super.apply(inTransaction(base), description);
+        }
+        checkEachTestRegistered(description.getTestClass());
+        return super.apply(base, description);
+    }
+
+    private void checkEachTestRegistered(Class<?> testClass) {
+        if (testClass == null) {
+            return;
+        }
+        final TestClass rules = new TestClass(testClass);
+        final boolean registered = rules.getAnnotatedFields(Rule.class).stream()
+                .anyMatch(f -> f.getType().isAssignableFrom(EachTest.class))
+                || rules.getAnnotatedMethods(Rule.class).stream()
+                .anyMatch(m -> m.getReturnType().isAssignableFrom(EachTest.class));
+        if (!registered) {
+            throw new AssertionError("rollbackAfterEachTest() on a @ClassRule needs "
+                    + "'@Rule public TestRule tx = db.eachTest();' in " + testClass.getName());
+        }
+    }
+
+    private Statement inTransaction(Statement base) {
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                if (transaction != null) {
+                    base.evaluate();
+                    return;
+                }
+                final RollbackDataSource current = RollbackDataSource.begin(getTestDatabase());
+                transaction = current;
+                Throwable failure = null;
+                try {
+                    base.evaluate();
+                } catch (Throwable t) {
+                    failure = t;
+                } finally {
+                    transaction = null;
+                    try {
+                        current.close();
+                    } catch (SQLException e) {
+                        if (failure == null) {
+                            failure = e;
+                        } else {
+                            failure.addSuppressed(e);
+                        }
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        };
+    }
+
+    private final class EachTest implements TestRule {
+        @Override
+        public Statement apply(Statement base, Description description) {
+            return rollbackAfterEachTest ? inTransaction(base) : base;
+        }
+    }
+
     @Override
     protected void before() throws Throwable {
-        provider = PreparedDbProvider.forPreparer(preparer, builderCustomizers);
-        connectionInfo = provider.createNewDatabase();
+        final PreparedDbProvider.Options options = PreparedDbProvider.options();
+        providerCustomizers.forEach(c -> c.accept(options));
+        provider = PreparedDbProvider.forPreparer(preparer, builderCustomizers, options);
+        lease = provider.leaseDatabase();
+        connectionInfo = lease.getConnectionInfo();
         dataSource = provider.createDataSourceFromConnectionInfo(connectionInfo);
     }
 
     @Override
     protected void after() {
+        if (lease != null) {
+            lease.close();
+        }
+        lease = null;
         dataSource = null;
         connectionInfo = null;
         provider = null;
@@ -68,7 +188,8 @@ public class PreparedDbRule extends ExternalResource {
        if (dataSource == null) {
            throw new AssertionError("not initialized");
        }
-        return dataSource;
+        final RollbackDataSource current = transaction;
+        return current != null ? current : dataSource;
     }
 
     public ConnectionInfo getConnectionInfo() {
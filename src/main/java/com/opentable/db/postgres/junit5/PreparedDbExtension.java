@@ -14,26 +14,50 @@
 package com.opentable.db.postgres.junit5;
 
 import com.opentable.db.postgres.embedded.ConnectionInfo;
+import com.opentable.db.postgres.embedded.DatabaseLease;
 import com.opentable.db.postgres.embedded.DatabasePreparer;
 import com.opentable.db.postgres.embedded.EmbeddedPostgres;
 import com.opentable.db.postgres.embedded.PreparedDbProvider;
+import com.opentable.db.postgres.embedded.RollbackDataSource;
 import org.junit.jupiter.api.extension.AfterAllCallback;
+import org.junit.jupiter.api.extension.AfterEachCallback;
 import org.junit.jupiter.api.extension.BeforeAllCallback;
+import org.junit.jupiter.api.extension.BeforeEachCallback;
 import org.junit.jupiter.api.extension.ExtensionContext;
+import org.junit.jupiter.api.extension.ParameterContext;
+import org.junit.jupiter.api.extension.ParameterResolutionException;
+import org.junit.jupiter.api.extension.ParameterResolver;
 
 import javax.sql.DataSource;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 
-public class PreparedDbExtension implements BeforeAllCallback, AfterAllCallback {
+/**
+ * Provides a prepared database to a test class, or with {@link #perMethodDatabase()} to each test method.
+ * Per-method databases can also be taken as {@link DataSource} or {@link ConnectionInfo} parameters of test,
+ * <code>@BeforeEach</code> and <code>@AfterEach</code> methods; with several such extensions in one class, use the getters instead.
+ * Test methods may run concurrently (<code>junit.jupiter.execution.parallel.enabled</code>): each method's
+ * database and transaction live in its own {@link ExtensionContext.Store}, and the getters return those of the
+ * method running on the calling thread.
+ */
+public class PreparedDbExtension implements BeforeAllCallback, AfterAllCallback, BeforeEachCallback, AfterEachCallback, ParameterResolver {
+
+    private static final ExtensionContext.Namespace NAMESPACE = ExtensionContext.Namespace.create(PreparedDbExtension.class);
 
     private final DatabasePreparer preparer;
     private volatile DataSource dataSource;
     private volatile PreparedDbProvider provider;
     private volatile ConnectionInfo connectionInfo;
+    private volatile DatabaseLease lease;
+    private volatile boolean rollbackAfterEachTest;
+    private volatile boolean perMethodDatabase;
+    private final ThreadLocal<MethodDatabase> current = new ThreadLocal<>();
 
     private final List<Consumer<EmbeddedPostgres.Builder>> builderCustomizers = new CopyOnWriteArrayList<>();
+    private final List<Consumer<PreparedDbProvider.Options>> providerCustomizers = new CopyOnWriteArrayList<>();
 
     PreparedDbExtension(DatabasePreparer preparer) {
         if (preparer == null) {
@@ -43,37 +67,147 @@ public class PreparedDbExtension implements BeforeAllCallback, AfterAllCallback
     }
 
     public PreparedDbExtension customize(Consumer<EmbeddedPostgres.Builder> customizer) {
-        if (dataSource != null) {
+        if (provider != null) {
             throw new AssertionError("already started");
         }
         builderCustomizers.add(customizer);
         return this;
     }
 
+    public PreparedDbExtension customizeProvider(Consumer<PreparedDbProvider.Options> customizer) {
+        if (provider != null) {
+            throw new AssertionError("already started");
+        }
+        providerCustomizers.add(customizer);
+        return this;
+    }
+
+    /**
+     * Run each test method inside a transaction on a single connection that is rolled back afterwards.
+     * {@link #getTestDatabase()} returns that connection's {@link RollbackDataSource} while a test runs,
+     * and commits by the code under test become savepoints.
+     */
+    public PreparedDbExtension rollbackAfterEachTest() {
+        if (provider != null) {
+            throw new AssertionError("already started");
+        }
+        rollbackAfterEachTest = true;
+        return this;
+    }
+
+    /**
+     * Give each test method a database of its own, leased before the method and dropped after it, instead of one
+     * database for the whole class. Methods running in parallel each get their own; raise
+     * {@link PreparedDbProvider.Options#setPrefetchDepth(int) the prefetch depth} and
+     * {@link PreparedDbProvider.Options#setWorkerCount(int) worker count} towards the parallelism so that they
+     * do not wait for databases to be cloned.
+     */
+    public PreparedDbExtension perMethodDatabase() {
+        if (provider != null) {
+            throw new AssertionError("already started");
+        }
+        perMethodDatabase = true;
+        return this;
+    }
+
     @Override
     public void beforeAll(ExtensionContext extensionContext) throws Exception {
-        provider = PreparedDbProvider.forPreparer(preparer, builderCustomizers);
-        connectionInfo = provider.createNewDatabase();
+        final PreparedDbProvider.Options options = PreparedDbProvider.options();
+        providerCustomizers.forEach(c -> c.accept(options));
+        provider = PreparedDbProvider.forPreparer(preparer, builderCustomizers, options);
+        if (perMethodDatabase) {
+            return;
+        }
+        lease = provider.leaseDatabase();
+        connectionInfo = lease.getConnectionInfo();
         dataSource = provider.createDataSourceFromConnectionInfo(connectionInfo);
     }
 
     @Override
     public void afterAll(ExtensionContext extensionContext) {
+        if (lease != null) {
+            lease.close();
+        }
+        lease = null;
         dataSource = null;
         connectionInfo = null;
         provider = null;
     }
 
+    @Override
+    public void beforeEach(ExtensionContext extensionContext) throws Exception {
+        final MethodDatabase db;
+        if (perMethodDatabase) {
+            final DatabaseLease methodLease = getDbProvider().leaseDatabase();
+            db = new MethodDatabase(methodLease, provider.createDataSourceFromConnectionInfo(methodLease.getConnectionInfo()),
+                    methodLease.getConnectionInfo());
+        } else {
+            if (dataSource == null) {
+                throw new AssertionError("not initialized");
+            }
+            db = new MethodDatabase(null, dataSource, connectionInfo);
+        }
+        // Stored first, so the store releases the database even if the transaction can not be started.
+        extensionContext.getStore(NAMESPACE).put(this, db);
+        if (rollbackAfterEachTest) {
+            db.transaction = RollbackDataSource.begin(db.dataSource);
+        }
+        current.set(db);
+    }
+
+    @Override
+    public void afterEach(ExtensionContext extensionContext) throws Exception {
+        current.remove();
+        final MethodDatabase db = extensionContext.getStore(NAMESPACE).remove(this, MethodDatabase.class);
+        if (db != null) {
+            db.close();
+        }
+    }
+
+    /**
+     * Only with {@link #perMethodDatabase()}, and only for parameters of methods run for a test method, so that
+     * other resolvers of these types and classes with several extensions keep working otherwise.
+     */
+    @Override
+    public boolean supportsParameter(ParameterContext parameterContext, ExtensionContext extensionContext) {
+        if (!perMethodDatabase || !(parameterContext.getDeclaringExecutable() instanceof Method)
+                || !extensionContext.getTestMethod().isPresent()) {
+            return false;
+        }
+        final Class<?> type = parameterContext.getParameter().getType();
+        return type == DataSource.class || type == ConnectionInfo.class;
+    }
+
+    @Override
+    public Object resolveParameter(ParameterContext parameterContext, ExtensionContext extensionContext) {
+        final MethodDatabase db = extensionContext.getStore(NAMESPACE).get(this, MethodDatabase.class);
+        if (db == null) {
+            throw new ParameterResolutionException("No database outside of test methods and their @BeforeEach and @AfterEach methods");
+        }
+        return parameterContext.getParameter().getType() == DataSource.class ? db.getDataSource() : db.connectionInfo;
+    }
+
+    /**
+     * @return the database of the test method running on this thread, or of the class
+     */
     public DataSource getTestDatabase() {
+        final MethodDatabase db = current.get();
+        if (db != null) {
+            return db.getDataSource();
+        }
         if (dataSource == null) {
-            throw new AssertionError("not initialized");
+            throw new AssertionError(perMethodDatabase ? "no test method running on this thread" : "not initialized");
         }
         return dataSource;
     }
 
     public ConnectionInfo getConnectionInfo() {
+        final MethodDatabase db = current.get();
+        if (db != null) {
+            return db.connectionInfo;
+        }
         if (connectionInfo == null) {
-            throw new AssertionError("not initialized");
+            throw new AssertionError(perMethodDatabase ? "no test method running on this thread" : "not initialized");
         }
         return connectionInfo;
     }
@@ -85,4 +219,39 @@ public class PreparedDbExtension implements BeforeAllCallback, AfterAllCallback
         return provider;
     }
 
+    /**
+     * The database and transaction of one test method. Closed after the method, or by JUnit when its context ends.
+     */
+    private static final class MethodDatabase implements ExtensionContext.Store.CloseableResource {
+        private final DatabaseLease lease;
+        private final DataSource dataSource;
+        private final ConnectionInfo connectionInfo;
+        private volatile RollbackDataSource transaction;
+
+        MethodDatabase(DatabaseLease lease, DataSource dataSource, ConnectionInfo connectionInfo) {
+            this.lease = lease;
+            this.dataSource = dataSource;
+            this.connectionInfo = connectionInfo;
+        }
+
+        DataSource getDataSource() {
+            final RollbackDataSource tx = transaction;
+            return tx != null ? tx : dataSource;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            final RollbackDataSource tx = transaction;
+            transaction = null;
+            try {
+                if (tx != null) {
+                    tx.close();
+                }
+            } finally {
+                if (lease != null) {
+                    lease.close();
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.micrometer;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import com.opentable.db.postgres.embedded.EmbeddedPostgresListener;
+import com.opentable.db.postgres.embedded.EmbeddedPostgresListeners;
+
+/**
+ * Records {@link EmbeddedPostgresListener} events as Micrometer timers, tagged with <code>outcome</code>
+ * (<code>success</code> or <code>failure</code>), plus a gauge of databases ready to be handed out per pipeline, tagged
+ * with <code>pipeline</code>.
+ * The clone rate is the rate of <code>otj.pg.embedded.database.clone</code>.
+ * <p>
+ * Requires <code>io.micrometer:micrometer-core</code> on the classpath. Register an instance with
+ * {@link EmbeddedPostgresListeners#register(EmbeddedPostgresListener)}, or declare this class as a service
+ * to record into {@link Metrics#globalRegistry}.
+ */
+public class MicrometerEmbeddedPostgresListener implements EmbeddedPostgresListener {
+    public static final String CLUSTER_START = "otj.pg.embedded.cluster.start";
+    public static final String TEMPLATE_PREPARE = "otj.pg.embedded.template.prepare";
+    public static final String DATABASE_CLONE = "otj.pg.embedded.database.clone";
+    public static final String DATABASE_WAIT = "otj.pg.embedded.database.wait";
+    public static final String DATABASE_DROP = "otj.pg.embedded.database.drop";
+    public static final String DATABASES_READY = "otj.pg.embedded.databases.ready";
+
+    private final MeterRegistry registry;
+    private final ConcurrentMap<String, AtomicInteger> ready = new ConcurrentHashMap<>();
+
+    public MicrometerEmbeddedPostgresListener() {
+        this(Metrics.globalRegistry);
+    }
+
+    public MicrometerEmbeddedPostgresListener(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void clusterStarted(Duration elapsed, Throwable failure) {
+        timer(CLUSTER_START, failure).record(elapsed);
+    }
+
+    @Override
+    public void templatePrepared(Duration elapsed, Throwable failure) {
+        timer(TEMPLATE_PREPARE, failure).record(elapsed);
+    }
+
+    @Override
+    public void databaseCloned(Duration elapsed, Throwable failure) {
+        timer(DATABASE_CLONE, failure).record(elapsed);
+    }
+
+    @Override
+    public void databaseAcquired(Duration waited, int readyDatabases) {
+        Timer.builder(DATABASE_WAIT)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(waited);
+    }
+
+    @Override
+    public void databasesReady(String pipeline, int readyDatabases) {
+        ready.computeIfAbsent(pipeline, p -> registry.gauge(DATABASES_READY, Tags.of("pipeline", p), new AtomicInteger()))
+                .set(readyDatabases);
+    }
+
+    @Override
+    public void databaseDropped(Duration elapsed, Throwable failure) {
+        timer(DATABASE_DROP, failure).record(elapsed);
+    }
+
+    private Timer timer(String name, Throwable failure) {
+        return registry.timer(name, "outcome", failure == null ? "success" : "failure");
+    }
+}
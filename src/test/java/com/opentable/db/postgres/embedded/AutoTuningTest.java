@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static com.opentable.db.postgres.embedded.AutoTuning.GB;
+import static com.opentable.db.postgres.embedded.AutoTuning.MB;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class AutoTuningTest {
+    @Test
+    public void testLargeHostIsSplitBetweenClusters() {
+        final AutoTuning tuning = AutoTuning.compute(32, 64 * GB, 8);
+        assertEquals(4.0, tuning.getLimits().getCpus(), 0);
+        assertEquals(6 * GB, tuning.getLimits().getMemory());
+        assertEquals(768 * MB, tuning.getLimits().getSharedMemory());
+
+        final Map<String, String> config = tuning.getServerConfig();
+        assertEquals("384", config.get("max_connections"));
+        assertEquals("1536MB", config.get("shared_buffers"));
+        assertEquals("6MB", config.get("work_mem"));
+        assertEquals("4608MB", config.get("effective_cache_size"));
+        // Four CPUs are below the defaults for parallel workers, which are kept.
+        assertFalse(config.containsKey("max_parallel_workers"));
+        assertFalse(config.containsKey("max_parallel_workers_per_gather"));
+        assertFalse(config.containsKey("max_worker_processes"));
+    }
+
+    @Test
+    public void testManyCpusRaiseParallelWorkers() {
+        final Map<String, String> config = AutoTuning.compute(64, 256 * GB, 2).getServerConfig();
+        assertEquals("500", config.get("max_connections"));
+        assertEquals("8192MB", config.get("shared_buffers"));
+        assertEquals("32", config.get("max_worker_processes"));
+        assertEquals("32", config.get("max_parallel_workers"));
+        assertEquals("4", config.get("max_parallel_workers_per_gather"));
+        assertEquals("4", config.get("max_parallel_maintenance_workers"));
+    }
+
+    @Test
+    public void testSmallHostKeepsTheBaseline() {
+        final AutoTuning tuning = AutoTuning.compute(2, 4 * GB, 16);
+        assertEquals(1.0, tuning.getLimits().getCpus(), 0);
+        assertEquals(512 * MB, tuning.getLimits().getMemory());
+        assertEquals(128 * MB, tuning.getLimits().getSharedMemory());
+        assertTrue(tuning.getServerConfig().toString(), tuning.getServerConfig().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoClusters() {
+        AutoTuning.compute(4, 8 * GB, 0);
+    }
+
+    @Test
+    public void testSettingsAfterAutoTuneWin() {
+        final EmbeddedPostgres.Builder builder = EmbeddedPostgres.builder()
+                .autoTune(4)
+                .setServerConfig("work_mem", "1MB");
+        final EmbeddedPostgres.Builder other = EmbeddedPostgres.builder()
+                .autoTune(4)
+                .setServerConfig("work_mem", "1MB");
+        assertEquals(builder, other);
+        assertTrue(builder.configFingerprint().contains("work_mem=1MB"));
+    }
+
+    @Test
+    public void testDockerHostIsAskedOnce() {
+        assertSame(AutoTuning.forDockerHost(3), AutoTuning.forDockerHost(3));
+    }
+
+    @Test
+    public void testAutoTunedCluster() throws Exception {
+        try (EmbeddedPostgres pg = EmbeddedPostgres.builder().autoTune(2).start();
+             Connection c = pg.getPostgresDatabase().getConnection();
+             Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT current_setting('max_connections'), current_setting('max_parallel_workers_per_gather')")) {
+            rs.next();
+            final Map<String, String> expected = AutoTuning.forDockerHost(2).getServerConfig();
+            assertEquals(expected.getOrDefault("max_connections", "300"), rs.getString(1));
+            assertEquals(expected.getOrDefault("max_parallel_workers_per_gather", "2"), rs.getString(2));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Objects;
+
+import javax.sql.DataSource;
+
+/**
+ * Compares the {@link CloneStrategy} choices for a small and a large template.
+ * Not run as part of the test suite (needs a few minutes), start it by hand:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.opentable.db.postgres.embedded.CloneStrategyBenchmark
+ * </pre>
+ */
+public final class CloneStrategyBenchmark {
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 20;
+
+    private CloneStrategyBenchmark() {
+    }
+
+    public static void main(String[] args) throws SQLException {
+        run("small", 1, 0);
+        run("large", 50, 20_000);
+    }
+
+    private static void run(String name, int tables, int rowsPerTable) throws SQLException {
+        for (boolean compact : new boolean[] {false, true}) {
+            for (CloneStrategy strategy : CloneStrategy.values()) {
+                // A preparer of its own, so that no row clones from a pipeline another row started.
+                final DatabasePreparer preparer = new GeneratedPreparer(tables, rowsPerTable, strategy + "/" + compact);
+                final PreparedDbProvider provider = PreparedDbProvider.forPreparer(preparer, Collections.emptyList(),
+                        PreparedDbProvider.options().setCloneStrategy(strategy).setCompactTemplate(compact));
+                for (int i = 0; i < WARMUP; i++) {
+                    provider.leaseDatabase().close();
+                }
+                final long start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    provider.leaseDatabase().close();
+                }
+                final double perClone = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+                System.out.printf(Locale.ENGLISH, "%-6s template, compact=%-5s %-16s %8.1f ms/clone%n", name, compact, strategy, perClone); //NOPMD
+            }
+        }
+    }
+
+    static final class GeneratedPreparer implements DatabasePreparer {
+        private final int tables;
+        private final int rowsPerTable;
+        private final String row;
+
+        GeneratedPreparer(int tables, int rowsPerTable) {
+            this(tables, rowsPerTable, "");
+        }
+
+        /**
+         * @param row distinguishes otherwise equal preparers, so that each gets its own template
+         */
+        GeneratedPreparer(int tables, int rowsPerTable, String row) {
+            this.tables = tables;
+            this.rowsPerTable = rowsPerTable;
+            this.row = row;
+        }
+
+        @Override
+        public void prepare(DataSource ds) throws SQLException {
+            try (Connection c = ds.getConnection();
+                 Statement s = c.createStatement()) {
+                for (int i = 0; i < tables; i++) {
+                    s.execute(String.format(Locale.ENGLISH, "CREATE TABLE t%d (id int PRIMARY KEY, payload text)", i));
+                    s.execute(String.format(Locale.ENGLISH, "INSERT INTO t%d SELECT g, md5(g::text) FROM generate_series(1, %d) g", i, rowsPerTable));
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            GeneratedPreparer that = (GeneratedPreparer) o;
+            return tables == that.tables && rowsPerTable == that.rowsPerTable && row.equals(that.row);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tables, rowsPerTable, row);
+        }
+    }
+}
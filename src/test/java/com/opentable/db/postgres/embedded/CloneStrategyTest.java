@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class CloneStrategyTest {
+
+    @Test
+    public void testCreateDatabaseClause() {
+        assertEquals("", CloneStrategy.DEFAULT.createDatabaseClause(17));
+        assertEquals("", CloneStrategy.FILE_COPY.createDatabaseClause(14));
+        assertEquals(" STRATEGY = WAL_LOG", CloneStrategy.WAL_LOG.createDatabaseClause(15));
+        assertEquals(" STRATEGY = FILE_COPY", CloneStrategy.FILE_COPY.createDatabaseClause(17));
+        assertEquals(" STRATEGY = FILE_COPY", CloneStrategy.FILE_COPY_CLONE.createDatabaseClause(17));
+    }
+
+    @Test
+    public void testCloneCopyMethod() {
+        assertFalse(CloneStrategy.FILE_COPY_CLONE.usesCloneCopyMethod(17));
+        assertTrue(CloneStrategy.FILE_COPY_CLONE.usesCloneCopyMethod(18));
+        assertFalse(CloneStrategy.FILE_COPY.usesCloneCopyMethod(18));
+    }
+
+    @Test
+    public void testFileCopyWithCompactedTemplate() throws Exception {
+        final PreparedDbProvider provider = PreparedDbProvider.forPreparer(new PreparedDbTest.SimplePreparer("copied"),
+                Collections.emptyList(),
+                PreparedDbProvider.options().setCloneStrategy(CloneStrategy.FILE_COPY).setCompactTemplate(true));
+        try (DatabaseLease lease = provider.leaseDatabase();
+             Connection c = provider.createDataSourceFromConnectionInfo(lease.getConnectionInfo()).getConnection();
+             Statement s = c.createStatement();
+             ResultSet rs = s.executeQuery("SELECT count(1) FROM copied")) {
+            rs.next();
+            assertEquals(0, rs.getInt(1));
+        }
+    }
+}
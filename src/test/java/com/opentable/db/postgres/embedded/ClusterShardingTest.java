@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ClusterShardingTest {
+
+    @Test
+    public void testDatabasesSpreadOverClusters() throws Exception {
+        final PreparedDbProvider provider = PreparedDbProvider.forPreparer(new PreparedDbTest.SimplePreparer("sharded"),
+                Collections.emptyList(), PreparedDbProvider.options().setClusterCount(2));
+
+        final List<DatabaseLease> leases = new ArrayList<>();
+        final Map<Integer, Integer> perPort = new HashMap<>();
+        try {
+            for (int i = 0; i < 4; i++) {
+                final DatabaseLease lease = provider.leaseDatabase();
+                leases.add(lease);
+                perPort.merge(lease.getConnectionInfo().getPort(), 1, Integer::sum);
+                try (Connection c = provider.createDataSourceFromConnectionInfo(lease.getConnectionInfo()).getConnection();
+                     ResultSet rs = c.getMetaData().getTables(null, "public", "sharded", null)) {
+                    assertTrue(rs.next());
+                }
+            }
+            assertEquals(2, perPort.size());
+            perPort.values().forEach(count -> assertEquals(2, (int) count));
+            assertEquals(4, provider.getLiveDatabaseCount());
+        } finally {
+            leases.forEach(DatabaseLease::close);
+        }
+        assertEquals(0, provider.getLiveDatabaseCount());
+    }
+
+    @Test
+    public void testCountIsHonouredAfterASingleCluster() throws Exception {
+        final DatabasePreparer preparer = new PreparedDbTest.SimplePreparer("sharded_later");
+        final PreparedDbProvider single = PreparedDbProvider.forPreparer(preparer, Collections.emptyList(), PreparedDbProvider.options());
+        final PreparedDbProvider sharded = PreparedDbProvider.forPreparer(preparer, Collections.emptyList(),
+                PreparedDbProvider.options().setClusterCount(2));
+        try (DatabaseLease first = single.leaseDatabase();
+             DatabaseLease second = sharded.leaseDatabase();
+             DatabaseLease third = sharded.leaseDatabase()) {
+            assertNotEquals(second.getConnectionInfo().getPort(), third.getConnectionInfo().getPort());
+            assertEquals(1, single.getLiveDatabaseCount());
+            assertEquals(2, sharded.getLiveDatabaseCount());
+        }
+    }
+
+    @Test
+    public void testClusterCountMustBePositive() {
+        try {
+            PreparedDbProvider.options().setClusterCount(0);
+        } catch (IllegalArgumentException expected) {
+            return;
+        }
+        throw new AssertionError("Accepted a cluster count of 0");
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+
+public class ConcurrentStartTest {
+
+    @Test
+    public void testDifferentPreparersPrepareInParallel() throws Exception {
+        // Each preparer waits for the other one to have started, which only works if they run concurrently.
+        final CountDownLatch bothPreparing = new CountDownLatch(2);
+        final CompletableFuture<PreparedDbProvider> a = CompletableFuture.supplyAsync(
+                () -> PreparedDbProvider.forPreparer(new RendezvousPreparer("parallel_a", bothPreparing)));
+        final CompletableFuture<PreparedDbProvider> b = CompletableFuture.supplyAsync(
+                () -> PreparedDbProvider.forPreparer(new RendezvousPreparer("parallel_b", bothPreparing)));
+
+        assertNotNull(a.get(120, TimeUnit.SECONDS).createNewDatabase());
+        assertNotNull(b.get(120, TimeUnit.SECONDS).createNewDatabase());
+    }
+
+    @Test
+    public void testFailureIsRetriedByLaterCallers() throws Exception {
+        final FailingOncePreparer preparer = new FailingOncePreparer();
+        try {
+            PreparedDbProvider.forPreparer(preparer);
+            fail("expected the first attempt to fail");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+        assertNotNull(PreparedDbProvider.forPreparer(preparer).createNewDatabase());
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void testFailureReachesWaiters() throws Exception {
+        final DatabasePreparer failing = ds -> {
+            throw new SQLException("broken");
+        };
+        CompletableFuture.supplyAsync(() -> PreparedDbProvider.forPreparer(failing)).get(120, TimeUnit.SECONDS);
+    }
+
+    private static final class RendezvousPreparer implements DatabasePreparer {
+        private final String table;
+        private final CountDownLatch latch;
+
+        RendezvousPreparer(String table, CountDownLatch latch) {
+            this.table = table;
+            this.latch = latch;
+        }
+
+        @Override
+        public void prepare(DataSource ds) throws SQLException {
+            latch.countDown();
+            try {
+                if (!latch.await(60, TimeUnit.SECONDS)) {
+                    throw new SQLException("preparers did not run concurrently");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException(e);
+            }
+            new PreparedDbTest.SimplePreparer(table).prepare(ds);
+        }
+    }
+
+    private static final class FailingOncePreparer implements DatabasePreparer {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public void prepare(DataSource ds) throws SQLException {
+            if (calls.getAndIncrement() == 0) {
+                throw new SQLException("first attempt fails");
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.testcontainers.utility.TestcontainersConfiguration;
+
+public class ContainerReuseTest {
+    // A server setting no other test uses, so this test starts its own cluster.
+    private static final Consumer<EmbeddedPostgres.Builder> REUSE = b -> b
+            .setReuse(true)
+            .setServerConfig("application_name", "container-reuse-test");
+
+    @Test
+    public void testReuseNeedsToBeEnabled() throws Exception {
+        Assume.assumeFalse(TestcontainersConfiguration.getInstance().environmentSupportsReuse());
+        final EmbeddedPostgres.Builder builder = EmbeddedPostgres.builder();
+        REUSE.accept(builder);
+        try (EmbeddedPostgres pg = builder.start()) {
+            assertFalse(pg.isReusable());
+            assertFalse(pg.isReused());
+        }
+    }
+
+    @Test
+    public void testTemplateIsKeptAndLeftoversAreDropped() throws Exception {
+        Assume.assumeTrue(TestcontainersConfiguration.getInstance().environmentSupportsReuse());
+        final EmbeddedPostgres.Builder builder = EmbeddedPostgres.builder();
+        REUSE.accept(builder);
+
+        final PreparedDbProvider first = PreparedDbProvider.forPreparer(
+                FlywayPreparer.forClasspathLocation("db/testing"), Collections.singletonList(REUSE));
+        try (Connection c = first.createDataSource().getConnection();
+             Statement stmt = c.createStatement()) {
+            // A database of a run that is gone.
+            stmt.execute("CREATE DATABASE pge_00000000_leftover");
+        }
+        final List<String> templates = databases(first, "tmpl_%");
+        try (Connection c = first.createDataSource().getConnection();
+             Statement stmt = c.createStatement()) {
+            // A kept template of a fingerprint no run has asked for in a long time.
+            stmt.execute("CREATE DATABASE tmpl_000000000000000000000000");
+            stmt.execute("ALTER DATABASE tmpl_000000000000000000000000 WITH IS_TEMPLATE true");
+            stmt.execute("COMMENT ON DATABASE tmpl_000000000000000000000000 IS 'otj-pg-embedded template last used 2000-01-01T00:00:00Z'");
+        }
+        PreparedDbProvider.closeCluster(builder);
+
+        final PreparedDbProvider second = PreparedDbProvider.forPreparer(
+                FlywayPreparer.forClasspathLocation("db/testing"), Collections.singletonList(REUSE));
+        try (Connection c = second.createDataSource().getConnection()) {
+            assertTrue(c.isValid(1));
+        }
+        final long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!databases(second, "pge_00000000_%").isEmpty() || !databases(second, "tmpl_000000000000000000000000").isEmpty()) {
+            assertTrue("leftover database or unused template was not dropped", System.nanoTime() < deadline);
+            Thread.sleep(100);
+        }
+        assertEquals(templates, databases(second, "tmpl_%"));
+    }
+
+    private static List<String> databases(PreparedDbProvider provider, String pattern) throws SQLException {
+        final List<String> result = new ArrayList<>();
+        try (Connection c = provider.createDataSource().getConnection();
+             Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT datname FROM pg_database WHERE datname LIKE '" + pattern + "' ORDER BY 1")) {
+            while (rs.next()) {
+                result.add(rs.getString(1));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class DatabaseLeaseTest {
+
+    private static final DatabasePreparer PREPARER = new PreparedDbTest.SimplePreparer("leased");
+
+    @Test
+    public void testLeaseIsDropped() throws Exception {
+        final PreparedDbProvider provider = PreparedDbProvider.forPreparer(PREPARER);
+        final DatabaseLease lease = provider.leaseDatabase();
+        assertEquals(1, provider.getLiveDatabaseCount());
+
+        // Leave a connection open, the drop must terminate it.
+        final Connection leftOver = provider.createDataSourceFromConnectionInfo(lease.getConnectionInfo()).getConnection();
+        final Connection admin = provider.createDataSourceFromConnectionInfo(provider.createNewDatabase()).getConnection();
+        try {
+            assertTrue(exists(admin, lease.getDatabaseName()));
+
+            lease.close();
+            lease.close();
+            assertTrue(lease.isClosed());
+
+            final long deadline = System.currentTimeMillis() + 30_000;
+            while (provider.getDroppedDatabaseCount() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, provider.getDroppedDatabaseCount());
+            assertEquals(0, provider.getPendingDropCount());
+            assertEquals(1, provider.getLiveDatabaseCount());
+            assertFalse(exists(admin, lease.getDatabaseName()));
+        } finally {
+            leftOver.close();
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testReleaseAfterClusterIsClosed() throws Exception {
+        final PreparedDbProvider provider = PreparedDbProvider.forPreparer(PREPARER,
+                Collections.singletonList(b -> b.setServerConfig("work_mem", "5MB")));
+        final DatabaseLease lease = provider.leaseDatabase();
+        PreparedDbProvider.closeCluster(EmbeddedPostgres.builder().setServerConfig("work_mem", "5MB"));
+
+        lease.close();
+        assertTrue(lease.isClosed());
+        assertEquals(0, provider.getLiveDatabaseCount());
+        assertEquals(0, provider.getPendingDropCount());
+    }
+
+    private boolean exists(Connection c, String dbName) throws SQLException {
+        try (PreparedStatement stmt = c.prepareStatement("SELECT 1 FROM pg_database WHERE datname = ?")) {
+            stmt.setString(1, dbName);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cluster start, connection latency and a write-heavy workload, the latter two with the default settings and
+ * {@link EmbeddedPostgres.Builder#usePerformanceProfile() the performance profile}. Needs Docker with the default
+ * image pulled; run through the <code>benchmark</code> profile, see {@link PreparedDbProviderBenchmark}.
+ */
+@State(Scope.Benchmark)
+public class EmbeddedPostgresBenchmark {
+    private EmbeddedPostgres started;
+
+    /**
+     * The first start in a fresh JVM, including loading Testcontainers and connecting to Docker.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Fork(5)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    public void startCold() throws IOException {
+        started = EmbeddedPostgres.builder().start();
+    }
+
+    /**
+     * Starting another cluster in a JVM that already started some.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Fork(1)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public void startWarm() throws IOException {
+        started = EmbeddedPostgres.builder().start();
+    }
+
+    @TearDown(Level.Iteration)
+    public void stop() throws IOException {
+        if (started != null) {
+            started.close();
+            started = null;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Cluster {
+        @Param({"default", "performance"})
+        public String profile;
+
+        EmbeddedPostgres pg;
+        DataSource database;
+
+        @Setup
+        public void start() throws IOException, SQLException {
+            final EmbeddedPostgres.Builder builder = EmbeddedPostgres.builder();
+            if ("performance".equals(profile)) {
+                builder.usePerformanceProfile();
+            }
+            pg = builder.start();
+            database = pg.getDatabase(pg.getUserName(), "postgres");
+            try (Connection c = database.getConnection();
+                 Statement stmt = c.createStatement()) {
+                stmt.execute("CREATE TABLE events (id bigserial PRIMARY KEY, payload text NOT NULL, created timestamptz DEFAULT now())");
+                stmt.execute("CREATE INDEX events_payload ON events (payload)");
+            }
+        }
+
+        @TearDown
+        public void stop() throws IOException {
+            pg.close();
+        }
+    }
+
+    /**
+     * Opening and closing a connection through {@link EmbeddedPostgres#getDatabase(String, String)}.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Fork(1)
+    @Warmup(iterations = 3, time = 5)
+    @Measurement(iterations = 5, time = 10)
+    public boolean getConnection(Cluster cluster) throws SQLException {
+        try (Connection c = cluster.database.getConnection()) {
+            return c.isClosed();
+        }
+    }
+
+    /**
+     * Inserting, updating and deleting 1000 indexed rows in one transaction.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Fork(1)
+    @Warmup(iterations = 3, time = 5)
+    @Measurement(iterations = 5, time = 10)
+    public int writeHeavy(Cluster cluster) throws SQLException {
+        try (Connection c = cluster.database.getConnection();
+             Statement stmt = c.createStatement()) {
+            c.setAutoCommit(false);
+            stmt.execute("INSERT INTO events (payload) SELECT md5(g::text) FROM generate_series(1, 1000) g");
+            stmt.execute("UPDATE events SET payload = md5(payload) WHERE id % 2 = 0");
+            final int deleted = stmt.executeUpdate("DELETE FROM events");
+            c.commit();
+            return deleted;
+        }
+    }
+}
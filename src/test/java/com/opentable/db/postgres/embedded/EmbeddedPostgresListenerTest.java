@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.opentable.db.postgres.micrometer.MicrometerEmbeddedPostgresListener;
+
+public class EmbeddedPostgresListenerTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final EmbeddedPostgresListener failing = new EmbeddedPostgresListener() {
+        @Override
+        public void databaseCloned(Duration elapsed, Throwable failure) {
+            throw new IllegalStateException("broken listener");
+        }
+    };
+    private final EmbeddedPostgresListener micrometer = new MicrometerEmbeddedPostgresListener(registry);
+
+    @After
+    public void unregister() {
+        EmbeddedPostgresListeners.unregister(failing);
+        EmbeddedPostgresListeners.unregister(micrometer);
+    }
+
+    @Test
+    public void testMicrometerBinding() {
+        EmbeddedPostgresListeners.register(failing);
+        EmbeddedPostgresListeners.register(micrometer);
+
+        EmbeddedPostgresListeners.fire(l -> l.databaseCloned(Duration.ofMillis(20), null));
+        EmbeddedPostgresListeners.fire(l -> l.databaseCloned(Duration.ofMillis(30), null));
+        EmbeddedPostgresListeners.fire(l -> l.databaseCloned(Duration.ofMillis(5), new SQLException("disk full")));
+        EmbeddedPostgresListeners.fire(l -> l.databaseAcquired(Duration.ofMillis(7), 3));
+        EmbeddedPostgresListeners.fire(l -> l.databaseAcquired(Duration.ofMillis(1), -1));
+        EmbeddedPostgresListeners.fire(l -> l.databasesReady("tmpl_a@1", 3));
+        EmbeddedPostgresListeners.fire(l -> l.databasesReady("tmpl_b@2", 1));
+        EmbeddedPostgresListeners.fire(l -> l.databasesReady("tmpl_a@1", 2));
+
+        assertEquals(2, registry.get(MicrometerEmbeddedPostgresListener.DATABASE_CLONE).tag("outcome", "success").timer().count());
+        assertEquals(1, registry.get(MicrometerEmbeddedPostgresListener.DATABASE_CLONE).tag("outcome", "failure").timer().count());
+        assertEquals(2, registry.get(MicrometerEmbeddedPostgresListener.DATABASE_WAIT).timer().count());
+        assertEquals(2.0, registry.get(MicrometerEmbeddedPostgresListener.DATABASES_READY).tag("pipeline", "tmpl_a@1").gauge().value(), 0.0);
+        assertEquals(1.0, registry.get(MicrometerEmbeddedPostgresListener.DATABASES_READY).tag("pipeline", "tmpl_b@2").gauge().value(), 0.0);
+    }
+
+    @Test
+    public void testReadyDatabasesWithoutPrefetch() throws Exception {
+        final CountDownLatch readyOne = new CountDownLatch(1);
+        final CountDownLatch handedOut = new CountDownLatch(1);
+        final EmbeddedPostgresListener listener = new EmbeddedPostgresListener() {
+            @Override
+            public void databasesReady(String pipeline, int readyDatabases) {
+                (readyDatabases > 0 ? readyOne : handedOut).countDown();
+            }
+        };
+        EmbeddedPostgresListeners.register(listener);
+        try {
+            final PreparedDbProvider provider = PreparedDbProvider.forPreparer(new PreparedDbTest.SimplePreparer("ready_gauge"),
+                    Collections.emptyList(), PreparedDbProvider.options());
+            // A worker holding a clone counts as ready, even though the queue itself holds nothing.
+            assertTrue(readyOne.await(1, TimeUnit.MINUTES));
+            provider.createDatabase();
+            assertTrue(handedOut.await(1, TimeUnit.MINUTES));
+        } finally {
+            EmbeddedPostgresListeners.unregister(listener);
+        }
+    }
+}
@@ -133,6 +133,26 @@ public class EmbeddedPostgresTest
         }
     }
 
+    @Test
+    public void testPerformanceProfile() throws IOException, SQLException {
+        try (EmbeddedPostgres db = EmbeddedPostgres.builder().usePerformanceProfile("512m").start();
+             Connection c = db.getPostgresDatabase().getConnection();
+             Statement s = c.createStatement()) {
+            try (ResultSet rs = s.executeQuery("SELECT current_setting('wal_level'), current_setting('full_page_writes'),"
+                    + " current_setting('data_directory')")) {
+                rs.next();
+                assertEquals("minimal", rs.getString(1));
+                assertEquals("off", rs.getString(2));
+                assertEquals(EmbeddedPostgres.DATA_DIRECTORY, rs.getString(3));
+            }
+            try (ResultSet rs = s.executeQuery("SELECT pg_read_file('/proc/mounts')")) {
+                rs.next();
+                assertTrue(rs.getString(1).contains("tmpfs " + EmbeddedPostgres.DATA_DIRECTORY + " tmpfs"));
+            }
+            s.execute("CREATE TABLE t AS SELECT g FROM generate_series(1, 10000) g");
+        }
+    }
+
     private void testSpecificDatabaseName(EmbeddedPostgres db, String expectedName) throws SQLException, IOException {
         testSpecificDatabaseName(db.getPostgresDatabase(), db,expectedName);
     }
@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+import org.testcontainers.DockerClientFactory;
+
+public class ImageSnapshotTest {
+    @Test
+    public void testSecondRunStartsFromSnapshot() throws Exception {
+        // A fresh configuration, so this test never finds a snapshot of an earlier run.
+        final String run = UUID.randomUUID().toString();
+        final Consumer<EmbeddedPostgres.Builder> customizer = b -> b.setServerConfig("application_name", "snapshot-" + run);
+        final EmbeddedPostgres.Builder builder = EmbeddedPostgres.builder();
+        customizer.accept(builder);
+        final DatabasePreparer preparer = FlywayPreparer.forClasspathLocation("db/testing");
+        final PreparedDbProvider.Options options = PreparedDbProvider.options().setImageSnapshot(true);
+        final ImageSnapshot snapshot = new ImageSnapshot(builder,
+                "tmpl_" + TemplateCache.sha256(preparer.getFingerprint().get() + "\ncompact=false").substring(0, 24));
+
+        try {
+            assertEquals(3, countMigrations(PreparedDbProvider.forPreparer(preparer, Collections.singletonList(customizer), options)));
+            assertTrue(snapshot.exists());
+            // Forget the pipeline and stop the cluster started from the snapshot, as if this was a new JVM.
+            PreparedDbProvider.closeCluster(builder);
+            PreparedDbProvider.closeCluster(builder.copy().useSnapshotLayout().setImage(snapshot.getImage()));
+
+            final PreparedDbProvider second = PreparedDbProvider.forPreparer(preparer, Collections.singletonList(customizer), options);
+            assertEquals(3, countMigrations(second));
+            try (Connection c = second.createDataSource().getConnection();
+                 Statement stmt = c.createStatement();
+                 ResultSet rs = stmt.executeQuery("SHOW data_directory")) {
+                rs.next();
+                assertEquals(EmbeddedPostgres.SNAPSHOT_DATA_DIRECTORY, rs.getString(1));
+            }
+        } finally {
+            PreparedDbProvider.closeCluster(builder);
+            PreparedDbProvider.closeCluster(builder.copy().useSnapshotLayout().setImage(snapshot.getImage()));
+            DockerClientFactory.instance().client().removeImageCmd(snapshot.getImage().asCanonicalNameString()).withForce(true).exec();
+        }
+    }
+
+    private static int countMigrations(PreparedDbProvider provider) throws Exception {
+        try (Connection c = provider.createDataSource().getConnection();
+             Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT count(*) FROM flyway_schema_history WHERE success")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class InitdbCacheTest {
+
+    @Rule
+    public TemporaryFolder tf = new TemporaryFolder();
+
+    @Test
+    public void testKeyIsStable() {
+        final Path bin = Paths.get("/usr/lib/postgresql/16/bin");
+        final List<String> options = Arrays.asList("-U", "postgres", "--locale", "C");
+        final String key = InitdbCache.key(bin, "postgres (PostgreSQL) 16.2", options);
+        assertEquals(key, InitdbCache.key(bin, "postgres (PostgreSQL) 16.2", options));
+        assertNotEquals(key, InitdbCache.key(bin, "postgres (PostgreSQL) 16.3", options));
+        assertNotEquals(key, InitdbCache.key(bin, "postgres (PostgreSQL) 16.2", Arrays.asList("-U", "postgres", "--locale", "en_US.UTF-8")));
+        assertNotEquals(key, InitdbCache.key(Paths.get("/opt/pg16/bin"), "postgres (PostgreSQL) 16.2", options));
+    }
+
+    @Test
+    public void testInitdbRunsOnce() throws Exception {
+        final Path bin = fakeInstallation();
+        final InitdbCache cache = new InitdbCache(tf.newFolder().toPath());
+        final List<String> options = Collections.singletonList("--no-sync");
+
+        for (int i = 0; i < 3; i++) {
+            final Path data = tf.newFolder().toPath();
+            cache.initialize(bin, options, data);
+            assertEquals("16\n", new String(Files.readAllBytes(data.resolve("PG_VERSION")), StandardCharsets.UTF_8));
+            assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(data.resolve("base"))));
+        }
+        assertEquals(1, Files.readAllLines(bin.resolve("runs")).size());
+
+        cache.initialize(bin, Arrays.asList("--no-sync", "--locale", "C"), tf.newFolder().toPath());
+        assertEquals(2, Files.readAllLines(bin.resolve("runs")).size());
+    }
+
+    @Test
+    public void testCopyPreservesPermissions() throws Exception {
+        final Path source = tf.newFolder().toPath();
+        Files.createDirectories(source.resolve("base/1"));
+        Files.write(source.resolve("base/1/1259"), new byte[8192]);
+        Files.setPosixFilePermissions(source.resolve("base"), PosixFilePermissions.fromString("rwx------"));
+        Files.setPosixFilePermissions(source.resolve("base/1/1259"), PosixFilePermissions.fromString("rw-------"));
+        final Path target = tf.newFolder().toPath();
+
+        InitdbCache.copy(source, target);
+
+        assertEquals(8192, Files.size(target.resolve("base/1/1259")));
+        assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(target.resolve("base"))));
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(target.resolve("base/1/1259"))));
+    }
+
+    @Test
+    public void testBuilderIdentity() {
+        final EmbeddedPostgres.Builder uncached = EmbeddedPostgres.builder().setInitdbCache(false);
+        assertNotEquals(EmbeddedPostgres.builder(), uncached);
+        assertEquals(uncached, uncached.copy());
+
+        final Properties properties = new Properties();
+        uncached.store(properties);
+        final EmbeddedPostgres.Builder loaded = EmbeddedPostgres.builder();
+        loaded.load(properties);
+        assertEquals(uncached, loaded);
+    }
+
+    /**
+     * Scripts standing in for initdb, which records its runs, and postgres --version.
+     */
+    private Path fakeInstallation() throws Exception {
+        final Path bin = tf.newFolder().toPath();
+        script(bin.resolve("initdb"), "#!/bin/sh\n"
+                + "echo run >> '" + bin.resolve("runs") + "'\n"
+                + "mkdir -p \"$2/base\" && chmod 700 \"$2/base\" && echo 16 > \"$2/PG_VERSION\"\n");
+        script(bin.resolve("postgres"), "#!/bin/sh\necho 'postgres (PostgreSQL) 16.2'\n");
+        return bin;
+    }
+
+    private static void script(Path path, String content) throws Exception {
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rwx------"));
+    }
+}
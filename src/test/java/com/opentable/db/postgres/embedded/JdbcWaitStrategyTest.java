@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.dockerjava.api.command.InspectContainerResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.testcontainers.containers.ContainerLaunchException;
+import org.testcontainers.containers.wait.strategy.WaitStrategyTarget;
+
+public class JdbcWaitStrategyTest {
+    private ServerSocket server;
+    private final AtomicInteger accepted = new AtomicInteger();
+
+    /**
+     * Behaves like Docker's port forwarding before the server listens: accepts and immediately hangs up.
+     */
+    @Before
+    public void startProxy() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try (Socket s = server.accept()) {
+                    accepted.incrementAndGet();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "fake-docker-proxy");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void stopProxy() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void testRetriesUntilTimeout() {
+        final long start = System.nanoTime();
+        try {
+            new JdbcWaitStrategy("postgres", "postgres", "postgres")
+                    .withStartupTimeout(Duration.ofSeconds(1))
+                    .waitUntilReady(new Target(true));
+            fail("nothing ever answers");
+        } catch (ContainerLaunchException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("did not accept connections"));
+        }
+        final Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+        assertTrue(elapsed.toString(), elapsed.compareTo(Duration.ofSeconds(3)) < 0);
+        // 10, 20, 40, 80, 160 ms and then every 250 ms
+        assertTrue("attempts: " + accepted.get(), accepted.get() >= 5);
+    }
+
+    @Test
+    public void testExitedContainerFailsFast() {
+        final long start = System.nanoTime();
+        try {
+            new JdbcWaitStrategy("postgres", "postgres", "postgres")
+                    .withStartupTimeout(Duration.ofSeconds(60))
+                    .waitUntilReady(new Target(false));
+            fail("container is gone");
+        } catch (ContainerLaunchException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("exited"));
+        }
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(5)) < 0);
+    }
+
+    private final class Target implements WaitStrategyTarget {
+        private final boolean running;
+
+        Target(boolean running) {
+            this.running = running;
+        }
+
+        @Override
+        public List<Integer> getExposedPorts() {
+            return Collections.singletonList(5432);
+        }
+
+        @Override
+        public InspectContainerResponse getContainerInfo() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getHost() {
+            return server.getInetAddress().getHostAddress();
+        }
+
+        @Override
+        public Integer getMappedPort(int originalPort) {
+            return server.getLocalPort();
+        }
+
+        @Override
+        public boolean isRunning() {
+            return running;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+
+public class JfrEventsTest {
+    private static final String PREFIX = "com.opentable.db.postgres.";
+
+    @Test
+    public void testLifecycleIsRecorded() throws Exception {
+        final Map<String, List<RecordedEvent>> events = record(Arrays.asList(
+                "ContainerStart", "ContainerReady", "TemplatePrepare", "Migrate", "DatabaseClone", "DatabaseWait"), () -> {
+            // A server setting no other test uses, so this test starts its own cluster.
+            final Consumer<EmbeddedPostgres.Builder> ownCluster = b -> b.setServerConfig("application_name", "jfr-events-test");
+            final PreparedDbProvider provider = PreparedDbProvider.forPreparer(
+                    FlywayPreparer.forClasspathLocation("db/testing"), Collections.singletonList(ownCluster));
+            try (Connection c = provider.createDataSource().getConnection()) {
+                assertTrue(c.isValid(1));
+            }
+        });
+
+        assertEquals(1, events.get("ContainerStart").size());
+        assertEquals(1, events.get("ContainerReady").size());
+        assertEquals(1, events.get("TemplatePrepare").size());
+        assertFalse(events.get("TemplatePrepare").get(0).getBoolean("cached"));
+        assertEquals(3, events.get("Migrate").get(0).getInt("migrations"));
+        assertTrue(events.containsKey("DatabaseClone"));
+        assertEquals(1, events.get("DatabaseWait").size());
+    }
+
+    @Test
+    public void testCachedTemplateIsRecorded() throws Exception {
+        final Path cacheDirectory = Files.createTempDirectory("template-cache");
+        final Consumer<EmbeddedPostgres.Builder> ownCluster = b -> b.setServerConfig("application_name", "jfr-cache-test");
+        final Map<String, List<RecordedEvent>> events = record(Collections.singletonList("TemplatePrepare"), () -> {
+            // Compacting forces a second template, restored from the cache entry the first one stored.
+            for (boolean compact : new boolean[] {false, true}) {
+                PreparedDbProvider.forPreparer(FlywayPreparer.forClasspathLocation("db/testing"), Collections.singletonList(ownCluster),
+                        PreparedDbProvider.options().setTemplateCacheDirectory(cacheDirectory).setCompactTemplate(compact)).createDatabase();
+            }
+        });
+
+        final List<RecordedEvent> prepared = events.get("TemplatePrepare");
+        assertEquals(2, prepared.size());
+        assertEquals(1, prepared.stream().filter(e -> e.getBoolean("cached")).count());
+    }
+
+    @Test
+    public void testDisabledEventsAreNotRecorded() throws Exception {
+        final Map<String, List<RecordedEvent>> events = record(Collections.singletonList("DatabaseWait"), () -> {
+            final JfrEvents.PipelineIdle idle = new JfrEvents.PipelineIdle();
+            idle.begin();
+            idle.commit();
+            final JfrEvents.DatabaseWait wait = new JfrEvents.DatabaseWait();
+            wait.begin();
+            wait.database = "pge_test";
+            wait.commit();
+        });
+
+        assertEquals(Collections.singleton("DatabaseWait"), events.keySet());
+        assertEquals("pge_test", events.get("DatabaseWait").get(0).getString("database"));
+    }
+
+    private static Map<String, List<RecordedEvent>> record(List<String> enabled, ThrowingRunnable work) throws Exception {
+        final Path file = Files.createTempFile("embedded-postgres", ".jfr");
+        try {
+            try (Recording recording = new Recording()) {
+                for (String name : enabled) {
+                    recording.enable(PREFIX + name).withoutThreshold();
+                }
+                recording.start();
+                work.run();
+                recording.stop();
+                recording.dump(file);
+            }
+            return RecordingFile.readAllEvents(file).stream()
+                    .collect(Collectors.groupingBy(e -> e.getEventType().getName().substring(PREFIX.length())));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private interface ThrowingRunnable {
+        void run() throws IOException, SQLException;
+    }
+}
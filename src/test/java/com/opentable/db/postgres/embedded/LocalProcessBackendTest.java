@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class LocalProcessBackendTest {
+    // Where to find initdb and friends, e.g. the output of pg_config --bindir.
+    private static final Path BIN_DIRECTORY = Paths.get(Optional.ofNullable(System.getenv("PG_BIN_DIR"))
+            .orElse(System.getProperty("pg.bin.dir", "/usr/local/bin")));
+    private static final Consumer<EmbeddedPostgres.Builder> LOCAL = b -> b.useLocalInstallation(BIN_DIRECTORY);
+
+    @Test
+    public void testBuilderIdentity() {
+        final EmbeddedPostgres.Builder local = EmbeddedPostgres.builder().useLocalInstallation(BIN_DIRECTORY);
+        assertNotEquals(EmbeddedPostgres.builder(), local);
+        assertNotEquals(EmbeddedPostgres.builder().configFingerprint(), local.configFingerprint());
+        assertEquals(local, local.copy());
+        assertFalse(local.supportsSnapshot());
+
+        final Properties properties = new Properties();
+        local.store(properties);
+        final EmbeddedPostgres.Builder loaded = EmbeddedPostgres.builder();
+        loaded.load(properties);
+        assertEquals(local, loaded);
+    }
+
+    @Test
+    public void testMissingBinariesFail() throws Exception {
+        final Path empty = Files.createTempDirectory("no-postgres");
+        try {
+            EmbeddedPostgres.builder().useLocalInstallation(empty).start();
+            fail("Started without binaries");
+        } catch (IOException expected) {
+            // initdb does not exist
+        } finally {
+            Files.delete(empty);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReuseIsRejected() throws Exception {
+        EmbeddedPostgres.builder().useLocalInstallation(BIN_DIRECTORY).setReuse(true).start();
+    }
+
+    @Test
+    public void testLocalCluster() throws Exception {
+        Assume.assumeTrue("PostgreSQL binaries must exist", Files.isExecutable(BIN_DIRECTORY.resolve("initdb")));
+        Assume.assumeFalse("PostgreSQL does not run as root", "root".equals(System.getProperty("user.name")));
+        try (EmbeddedPostgres pg = EmbeddedPostgres.builder()
+                .useLocalInstallation(BIN_DIRECTORY)
+                .setServerConfig("fsync", "off")
+                .start();
+             Connection c = pg.getPostgresDatabase().getConnection();
+             Statement s = c.createStatement()) {
+            assertEquals(LocalProcessBackend.HOST, pg.getHost());
+            try (ResultSet rs = s.executeQuery("SHOW fsync")) {
+                assertTrue(rs.next());
+                assertEquals("off", rs.getString(1));
+            }
+        }
+    }
+
+    @Test
+    public void testPreparedDatabases() throws Exception {
+        Assume.assumeTrue("PostgreSQL binaries must exist", Files.isExecutable(BIN_DIRECTORY.resolve("initdb")));
+        Assume.assumeFalse("PostgreSQL does not run as root", "root".equals(System.getProperty("user.name")));
+        final PreparedDbProvider provider = PreparedDbProvider.forPreparer(FlywayPreparer.forClasspathLocation("db/testing"),
+                Collections.singletonList(LOCAL));
+        try (Connection c = provider.createDataSource().getConnection();
+             Statement s = c.createStatement();
+             ResultSet rs = s.executeQuery("SELECT count(*) FROM flyway_schema_history WHERE success")) {
+            assertTrue(rs.next());
+            assertEquals(3, rs.getInt(1));
+        }
+    }
+}
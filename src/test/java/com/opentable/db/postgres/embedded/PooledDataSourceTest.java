@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+
+import javax.sql.DataSource;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.opentable.db.postgres.junit.EmbeddedPostgresRules;
+import com.opentable.db.postgres.junit.PreparedDbRule;
+
+public class PooledDataSourceTest {
+    @Rule
+    public PreparedDbRule db = EmbeddedPostgresRules.preparedDatabase(new PreparedDbTest.SimplePreparer("pooled"))
+            .customizeProvider(o -> o.setConnectionPoolSize(2));
+
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+        final DataSource ds = db.getTestDatabase();
+        assertTrue(ds instanceof PooledDataSource);
+        assertSame(ds, db.getDbProvider().createDataSourceFromConnectionInfo(db.getConnectionInfo()));
+        // The pipeline opened the first connection ahead of time.
+        assertEquals(1, ((PooledDataSource) ds).getOpenCount());
+
+        final int pid = backendPid(ds);
+        assertEquals(pid, backendPid(ds));
+        assertEquals(1, ((PooledDataSource) ds).getOpenCount());
+
+        try (Connection first = ds.getConnection();
+             Connection second = ds.getConnection()) {
+            assertNotSame(first, second);
+            assertEquals(2, ((PooledDataSource) ds).getOpenCount());
+        }
+    }
+
+    @Test
+    public void testOnePoolPerDatabase() throws Exception {
+        final PreparedDbProvider provider = db.getDbProvider();
+        final ConnectionInfo info = provider.createNewDatabase();
+        assertSame(provider.createDataSourceFromConnectionInfo(info), provider.createDataSourceFromConnectionInfo(info));
+        assertNotSame(provider.createDataSourceFromConnectionInfo(info), provider.createDataSourceFromConnectionInfo(provider.createNewDatabase()));
+    }
+
+    @Test
+    public void testOpenTransactionIsRolledBackOnClose() throws Exception {
+        final DataSource ds = db.getTestDatabase();
+        try (Connection c = ds.getConnection();
+             Statement stmt = c.createStatement()) {
+            c.setAutoCommit(false);
+            stmt.execute("INSERT INTO pooled VALUES (42)");
+        }
+        try (Connection c = ds.getConnection();
+             Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT count(*) FROM pooled")) {
+            assertTrue(c.getAutoCommit());
+            rs.next();
+            assertEquals(0, rs.getInt(1));
+        }
+    }
+
+    @Test
+    public void testClosingThePoolClosesLeakedConnections() throws Exception {
+        final PooledDataSource ds = (PooledDataSource) db.getDbProvider().createDataSource();
+        final Connection returned = ds.getConnection();
+        returned.close();
+        final Connection leaked = ds.getConnection();
+        ds.close();
+        assertTrue(leaked.isClosed());
+        assertEquals(0, ds.getOpenCount());
+        try {
+            ds.getConnection();
+            fail("pool is closed");
+        } catch (SQLException expected) {
+            // expected
+        }
+        // Closing a connection after its pool, or twice, is harmless.
+        leaked.close();
+        returned.close();
+    }
+
+    @Test
+    public void testClusterDataSourcesAreCached() throws Exception {
+        try (EmbeddedPostgres pg = EmbeddedPostgres.builder().setConnectionPoolSize(1).start()) {
+            final DataSource ds = pg.getPostgresDatabase();
+            assertSame(ds, pg.getPostgresDatabase());
+            assertSame(ds, pg.getDatabase(pg.getUserName(), "postgres", Collections.emptyMap()));
+            assertNotSame(ds, pg.getPostgresDatabase(Collections.singletonMap("ApplicationName", "other")));
+            assertTrue(ds instanceof PooledDataSource);
+            assertFalse(pg.getTemplateDatabase() instanceof PooledDataSource);
+            assertEquals(backendPid(ds), backendPid(ds));
+        }
+    }
+
+    private static int backendPid(DataSource ds) throws SQLException {
+        try (Connection c = ds.getConnection();
+             Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT pg_backend_pid()")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.testcontainers.containers.BindMode;
+
+import com.opentable.db.postgres.embedded.EmbeddedPostgres.Builder;
+
+public class PreparedDbDaemonTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testBuilderRoundTrip() {
+        final Builder builder = EmbeddedPostgres.builder()
+                .setTag("15")
+                .setServerConfig("work_mem", "8MB")
+                .setLocaleConfig("locale", "en_US.utf-8")
+                .setBindMount(BindMount.of("/tmp/a", "/a", BindMode.READ_WRITE))
+                .setDatabaseName("other")
+                .setPGStartupWait(Duration.ofSeconds(5))
+                .usePerformanceProfile("1g")
+                .autoTune(2)
+                .setReuse(true);
+        final Properties properties = new Properties();
+        builder.store(properties);
+
+        final Builder copy = EmbeddedPostgres.builder();
+        copy.load(properties);
+        assertEquals(builder, copy);
+        assertEquals(builder.configFingerprint(), copy.configFingerprint());
+        assertTrue(copy.isPortable());
+    }
+
+    @Test
+    public void testOptionsRoundTrip() {
+        final PreparedDbProvider.Options options = PreparedDbProvider.options()
+                .setPrefetchDepth(3)
+                .setWorkerCount(2)
+                .setCloneStrategy(CloneStrategy.FILE_COPY)
+                .setCompactTemplate(true)
+                .setTemplateCacheDirectory(tmp.getRoot().toPath())
+                .setImageSnapshot(true)
+                .setClusterCount(2);
+        final Properties properties = new Properties();
+        options.store(properties);
+        assertEquals(options, PreparedDbProvider.Options.load(properties));
+    }
+
+    @Test
+    public void testProtocolAndIdleExit() throws Exception {
+        final Path directory = tmp.getRoot().toPath();
+        final PreparedDbDaemon daemon = new PreparedDbDaemon(directory, Duration.ofMillis(500));
+        final CompletableFuture<Void> running = CompletableFuture.runAsync(() -> {
+            try {
+                daemon.run();
+                daemon.close();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        final Path portFile = directory.resolve(PreparedDbDaemon.PORT_FILE);
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (!Files.exists(portFile) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Integer.toString(daemon.getPort()), new String(Files.readAllBytes(portFile), StandardCharsets.UTF_8));
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            PreparedDbDaemon.send(out, "PING");
+            assertEquals("PONG\t" + PreparedDbDaemon.PROTOCOL_VERSION, in.readLine());
+            PreparedDbDaemon.send(out, "CREATE");
+            assertTrue(in.readLine().startsWith("ERROR\t"));
+            // A connected client keeps the daemon alive.
+            Thread.sleep(1500);
+            assertFalse(running.isDone());
+        }
+
+        running.get(30, TimeUnit.SECONDS);
+        assertFalse(Files.exists(portFile));
+    }
+}
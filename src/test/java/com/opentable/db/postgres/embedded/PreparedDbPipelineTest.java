@@ -0,0 +1,169 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+
+public class PreparedDbPipelineTest {
+
+    private static final DatabasePreparer PREPARER = new PreparedDbTest.SimplePreparer("pipelined");
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPrefetchDepth() {
+        PreparedDbProvider.options().setPrefetchDepth(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWorkerCount() {
+        PreparedDbProvider.options().setWorkerCount(0);
+    }
+
+    @Test
+    public void testOptionsEquality() {
+        assertEquals(PreparedDbProvider.options(), PreparedDbProvider.options());
+        assertNotEquals(PreparedDbProvider.options(), PreparedDbProvider.options().setPrefetchDepth(4));
+        assertNotEquals(PreparedDbProvider.options(), PreparedDbProvider.options().setWorkerCount(4));
+        assertEquals(PreparedDbProvider.options(), PreparedDbProvider.options().setLazy(true));
+    }
+
+    @Test
+    public void testTuningSharesTemplate() throws Exception {
+        final AtomicInteger invocations = new AtomicInteger();
+        final DatabasePreparer preparer = ds -> invocations.incrementAndGet();
+        PreparedDbProvider.forPreparer(preparer, Collections.emptyList(), PreparedDbProvider.options()).createDatabase();
+        PreparedDbProvider.forPreparer(preparer, Collections.emptyList(),
+                PreparedDbProvider.options().setPrefetchDepth(4).setWorkerCount(2).setConnectionPoolSize(2)).createDatabase();
+        assertEquals(1, invocations.get());
+
+        PreparedDbProvider.forPreparer(preparer, Collections.emptyList(), PreparedDbProvider.options().setCompactTemplate(true)).createDatabase();
+        assertEquals(2, invocations.get());
+
+        PreparedDbProvider.forPreparer(preparer, Collections.emptyList(),
+                PreparedDbProvider.options().setCloneStrategy(CloneStrategy.FILE_COPY)).createDatabase();
+        assertEquals(3, invocations.get());
+    }
+
+    @Test
+    public void testPoolSizeIsPerProvider() throws Exception {
+        final DatabasePreparer preparer = ds -> { };
+        final PreparedDbProvider unpooled = PreparedDbProvider.forPreparer(preparer, Collections.emptyList(), PreparedDbProvider.options());
+        final PreparedDbProvider pooled = PreparedDbProvider.forPreparer(preparer, Collections.emptyList(),
+                PreparedDbProvider.options().setConnectionPoolSize(3));
+        assertFalse(unpooled.createDataSource() instanceof PooledDataSource);
+        try (DatabaseLease lease = pooled.leaseDatabase()) {
+            final DataSource ds = pooled.createDataSourceFromConnectionInfo(lease.getConnectionInfo());
+            assertTrue(ds.toString(), ds.toString().endsWith("maxSize=3]"));
+        }
+    }
+
+    @Test
+    public void testConcurrentConsumers() throws Exception {
+        final PreparedDbProvider provider = PreparedDbProvider.forPreparer(PREPARER, Collections.emptyList(),
+                PreparedDbProvider.options().setPrefetchDepth(4).setWorkerCount(3));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<ConnectionInfo>> futures = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                futures.add(executor.submit(provider::createNewDatabase));
+            }
+            final Set<String> urls = new HashSet<>();
+            for (Future<ConnectionInfo> future : futures) {
+                final ConnectionInfo info = future.get();
+                urls.add(info.getUrl());
+                try (Connection c = provider.createDataSourceFromConnectionInfo(info).getConnection();
+                     Statement s = c.createStatement();
+                     ResultSet rs = s.executeQuery("SELECT count(1) FROM pipelined")) {
+                    rs.next();
+                    assertEquals(0, rs.getInt(1));
+                }
+            }
+            assertEquals(12, urls.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAsyncConsumers() throws Exception {
+        final PreparedDbProvider provider = PreparedDbProvider.forPreparer(PREPARER, Collections.emptyList(),
+                PreparedDbProvider.options().setPrefetchDepth(2));
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final List<CompletableFuture<ConnectionInfo>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(i % 2 == 0 ? provider.createNewDatabaseAsync() : provider.createNewDatabaseAsync(executor));
+            }
+            final Set<String> urls = new HashSet<>();
+            for (CompletableFuture<ConnectionInfo> future : futures) {
+                urls.add(future.get(60, TimeUnit.SECONDS).getUrl());
+            }
+            assertEquals(4, urls.size());
+            try (Connection c = provider.createDataSourceAsync().get(60, TimeUnit.SECONDS).getConnection();
+                 Statement s = c.createStatement();
+                 ResultSet rs = s.executeQuery("SELECT count(1) FROM pipelined")) {
+                rs.next();
+                assertEquals(0, rs.getInt(1));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLazyStart() throws Exception {
+        final PreparedDbProvider provider = PreparedDbProvider.forPreparer(new PreparedDbTest.SimplePreparer("lazy"),
+                Collections.emptyList(), PreparedDbProvider.options().setLazy(true));
+        assertEquals(0, provider.getLiveDatabaseCount());
+        try (Connection c = provider.createDataSource().getConnection();
+             Statement s = c.createStatement();
+             ResultSet rs = s.executeQuery("SELECT count(1) FROM lazy")) {
+            rs.next();
+            assertEquals(0, rs.getInt(1));
+        }
+        assertEquals(1, provider.getLiveDatabaseCount());
+    }
+
+    @Test(expected = SQLException.class)
+    public void testLazyFailureSurfacesOnFirstUse() throws Exception {
+        final PreparedDbProvider provider = PreparedDbProvider.forPreparer(ds -> {
+            throw new SQLException("broken migration");
+        }, Collections.emptyList(), PreparedDbProvider.options().setLazy(true));
+        provider.createNewDatabase();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of handing out prepared databases to 1, 4 and 16 concurrent consumers, for an empty
+ * template, the three migrations in <code>db/testing</code> and a generated schema of 500 tables, with default
+ * settings and {@link EmbeddedPostgres.Builder#usePerformanceProfile() the performance profile}.
+ * Each database is leased and closed, so it is dropped again in the background. Needs Docker, run with
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="PreparedDbProviderBenchmark -p template=empty"
+ * </pre>
+ * Results are written to <code>target/jmh-result.json</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+public class PreparedDbProviderBenchmark {
+    @Param({"empty", "migrations", "tables500"})
+    public String template;
+
+    @Param({"default", "performance"})
+    public String profile;
+
+    private PreparedDbProvider provider;
+
+    @Setup
+    public void prepare() throws SQLException {
+        final DatabasePreparer preparer;
+        switch (template) {
+            case "empty":
+                preparer = new CloneStrategyBenchmark.GeneratedPreparer(0, 0);
+                break;
+            case "migrations":
+                preparer = FlywayPreparer.forClasspathLocation("db/testing");
+                break;
+            case "tables500":
+                preparer = new CloneStrategyBenchmark.GeneratedPreparer(500, 0);
+                break;
+            default:
+                throw new IllegalArgumentException(template);
+        }
+        final Consumer<EmbeddedPostgres.Builder> customizer = "performance".equals(profile)
+                ? EmbeddedPostgres.Builder::usePerformanceProfile : b -> { };
+        provider = PreparedDbProvider.forPreparer(preparer, Collections.singletonList(customizer));
+        // Start the cluster and prepare the template outside the measurement.
+        provider.leaseDatabase().close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String createNewDatabase1() throws SQLException {
+        return lease();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String createNewDatabase4() throws SQLException {
+        return lease();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String createNewDatabase16() throws SQLException {
+        return lease();
+    }
+
+    private String lease() throws SQLException {
+        try (DatabaseLease lease = provider.leaseDatabase()) {
+            return lease.getDatabaseName();
+        }
+    }
+}
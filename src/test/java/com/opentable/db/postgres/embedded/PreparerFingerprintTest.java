@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Optional;
+
+import liquibase.Contexts;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PreparerFingerprintTest {
+
+    @Rule
+    public TemporaryFolder tf = new TemporaryFolder();
+
+    @Test
+    public void testFlywayClasspathFingerprint() {
+        final String fingerprint = FlywayPreparer.forClasspathLocation("db/testing").getFingerprint().orElseThrow();
+        assertEquals(fingerprint, FlywayPreparer.forClasspathLocation("classpath:db/testing").getFingerprint().orElseThrow());
+        assertNotEquals(fingerprint, FlywayPreparer.forClasspathLocation("db/missing").getFingerprint().orElseThrow());
+        assertNotEquals(fingerprint, FlywayPreparer.forClasspathLocation(
+                Collections.singletonMap("flyway.postgresql.transactional.lock", "false"), "db/testing").getFingerprint().orElseThrow());
+    }
+
+    @Test
+    public void testFlywayFilesystemFingerprintTracksContent() throws Exception {
+        final File dir = tf.newFolder();
+        final File migration = new File(dir, "V1__create.sql");
+        Files.write(migration.toPath(), "CREATE TABLE a (id int);".getBytes(StandardCharsets.UTF_8));
+        final String location = "filesystem:" + dir.getAbsolutePath();
+        final String before = FlywayPreparer.forClasspathLocation(location).getFingerprint().orElseThrow();
+        assertEquals(before, FlywayPreparer.forClasspathLocation(location).getFingerprint().orElseThrow());
+
+        Files.write(migration.toPath(), "CREATE TABLE b (id int);".getBytes(StandardCharsets.UTF_8));
+        assertNotEquals(before, FlywayPreparer.forClasspathLocation(location).getFingerprint().orElseThrow());
+    }
+
+    @Test
+    public void testUnsupportedFlywayLocation() {
+        assertTrue(FlywayPreparer.forClasspathLocation("s3:bucket/migrations").getFingerprint().isEmpty());
+    }
+
+    @Test
+    public void testLiquibaseFingerprint() {
+        final String fingerprint = LiquibasePreparer.forClasspathLocation("liqui/master.xml").getFingerprint().orElseThrow();
+        assertEquals(fingerprint, LiquibasePreparer.forClasspathLocation("liqui/master.xml").getFingerprint().orElseThrow());
+        assertNotEquals(fingerprint, LiquibasePreparer.forClasspathLocation("liqui/master-test.xml").getFingerprint().orElseThrow());
+        assertNotEquals(fingerprint, LiquibasePreparer.forClasspathLocation("liqui/master.xml", new Contexts("test")).getFingerprint().orElseThrow());
+    }
+
+    @Test
+    public void testLiquibaseFingerprintFollowsIncludes() throws Exception {
+        final Path root = tf.newFolder().toPath();
+        Files.createDirectories(root.resolve("fp/changes"));
+        Files.createDirectories(root.resolve("shared"));
+        Files.write(root.resolve("fp/changes/root.xml"), changeLog("<include file=\"shared/included.xml\"/>"));
+        Files.write(root.resolve("shared/included.xml"), changeLog(
+                "<changeSet id=\"1\" author=\"test\"><sql>CREATE TABLE a (id int);</sql></changeSet>"));
+        final String before = liquibaseFingerprint(root, "fp/changes/root.xml").orElseThrow();
+        assertEquals(before, liquibaseFingerprint(root, "fp/changes/root.xml").orElseThrow());
+
+        Files.write(root.resolve("shared/included.xml"), changeLog(
+                "<changeSet id=\"1\" author=\"test\"><sql>CREATE TABLE b (id int);</sql></changeSet>"));
+        assertNotEquals(before, liquibaseFingerprint(root, "fp/changes/root.xml").orElseThrow());
+
+        Files.write(root.resolve("fp/changes/root.xml"), changeLog("<include file=\"shared/missing.xml\"/>"));
+        assertTrue(liquibaseFingerprint(root, "fp/changes/root.xml").isEmpty());
+    }
+
+    private static byte[] changeLog(String body) {
+        return ("<databaseChangeLog xmlns=\"http://www.liquibase.org/xml/ns/dbchangelog\""
+                + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+                + " xsi:schemaLocation=\"http://www.liquibase.org/xml/ns/dbchangelog"
+                + " http://www.liquibase.org/xml/ns/dbchangelog/dbchangelog-3.1.xsd\">" + body + "</databaseChangeLog>")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Optional<String> liquibaseFingerprint(Path classpathRoot, String location) throws Exception {
+        final Thread thread = Thread.currentThread();
+        final ClassLoader previous = thread.getContextClassLoader();
+        try (URLClassLoader loader = new URLClassLoader(new URL[] {classpathRoot.toUri().toURL()}, previous)) {
+            thread.setContextClassLoader(loader);
+            return LiquibasePreparer.forClasspathLocation(location).getFingerprint();
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+    }
+
+    @Test
+    public void testLiquibaseEqualityIncludesContexts() {
+        assertEquals(LiquibasePreparer.forClasspathLocation("liqui/master.xml", new Contexts("test")),
+                LiquibasePreparer.forClasspathLocation("liqui/master.xml", new Contexts("test")));
+        assertNotEquals(LiquibasePreparer.forClasspathLocation("liqui/master.xml"),
+                LiquibasePreparer.forClasspathLocation("liqui/master.xml", new Contexts("test")));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Test;
+
+public class ResettableDatabaseTest {
+
+    private static final DatabasePreparer PREPARER = new ReferenceDataPreparer();
+
+    @Test
+    public void testResetRestoresReferenceData() throws Exception {
+        final PreparedDbProvider provider = PreparedDbProvider.forPreparer(PREPARER);
+        try (ResettableDatabase db = provider.createResettableDatabase()) {
+            try (Connection c = provider.createDataSourceFromConnectionInfo(db.getConnectionInfo()).getConnection()) {
+                execute(c, "INSERT INTO country (name) VALUES ('FR')");
+                execute(c, "INSERT INTO city (country_id, name) VALUES (1, 'Amsterdam')");
+                execute(c, "DELETE FROM city_ref");
+                assertEquals(3, count(c, "country"));
+
+                db.reset();
+
+                assertEquals(2, count(c, "country"));
+                assertEquals(0, count(c, "city"));
+                assertEquals(1, count(c, "city_ref"));
+                assertEquals(1, count(c, "untouched"));
+                assertEquals(0, count(c, ResettableDatabase.SCHEMA + ".dirty"));
+                try (Statement s = c.createStatement();
+                     ResultSet rs = s.executeQuery("INSERT INTO country (name) VALUES ('DE') RETURNING id")) {
+                    rs.next();
+                    assertEquals(3, rs.getInt(1));
+                }
+
+                db.reset();
+                assertEquals(2, count(c, "country"));
+            }
+        }
+    }
+
+    private static void execute(Connection c, String sql) throws SQLException {
+        try (Statement s = c.createStatement()) {
+            s.execute(sql);
+        }
+    }
+
+    private static int count(Connection c, String table) throws SQLException {
+        try (Statement s = c.createStatement();
+             ResultSet rs = s.executeQuery("SELECT count(*) FROM " + table)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    static class ReferenceDataPreparer implements DatabaseConnectionPreparer {
+        @Override
+        public void prepare(Connection conn) throws SQLException {
+            execute(conn, "CREATE TABLE country (id serial PRIMARY KEY, name text)");
+            execute(conn, "INSERT INTO country (name) VALUES ('NL'), ('US')");
+            execute(conn, "CREATE TABLE city (id serial PRIMARY KEY, country_id int REFERENCES country, name text)");
+            execute(conn, "CREATE TABLE city_ref (country_id int REFERENCES country)");
+            execute(conn, "INSERT INTO city_ref VALUES (2)");
+            execute(conn, "CREATE TABLE untouched (v int)");
+            execute(conn, "INSERT INTO untouched VALUES (1)");
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+
+import com.opentable.db.postgres.junit.EmbeddedPostgresRules;
+import com.opentable.db.postgres.junit.PreparedDbRule;
+
+public class RollbackIsolationTest {
+
+    @ClassRule
+    public static PreparedDbRule db = EmbeddedPostgresRules.preparedDatabase(new PreparedDbTest.SimplePreparer("rolled_back"))
+            .rollbackAfterEachTest();
+
+    @Rule
+    public TestRule transaction = db.eachTest();
+
+    // Both tests expect to be the only writer; whichever runs second fails if the first one's commit leaked.
+    @Test
+    public void testCommitIsRolledBackAfterTest() throws SQLException {
+        final DataSource ds = db.getTestDatabase();
+        assertTrue(ds instanceof RollbackDataSource);
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            insert(c, 1);
+            c.commit();
+            assertFalse(c.getAutoCommit());
+        }
+        try (Connection c = ds.getConnection()) {
+            assertFalse(c.isClosed());
+            assertEquals(1, count(c));
+        }
+    }
+
+    @Test
+    public void testRollbackReturnsToLastCommit() throws SQLException {
+        try (Connection c = db.getTestDatabase().getConnection()) {
+            assertSame(c, db.getTestDatabase().getConnection());
+            c.setAutoCommit(false);
+            insert(c, 1);
+            c.commit();
+            insert(c, 2);
+            c.rollback();
+            assertEquals(1, count(c));
+        }
+    }
+
+    @Test
+    public void testClassRuleWithoutEachTestFails() {
+        final Result result = JUnitCore.runClasses(WithoutEachTest.class);
+        assertEquals(1, result.getFailureCount());
+        assertTrue(result.getFailures().get(0).getMessage().contains("db.eachTest()"));
+    }
+
+    public static class WithoutEachTest {
+        @ClassRule
+        public static PreparedDbRule db = EmbeddedPostgresRules.preparedDatabase(new PreparedDbTest.SimplePreparer("rolled_back"))
+                .rollbackAfterEachTest();
+
+        @Test
+        public void testNothing() {
+        }
+    }
+
+    private static void insert(Connection c, int value) throws SQLException {
+        try (Statement s = c.createStatement()) {
+            s.execute("INSERT INTO rolled_back VALUES (" + value + ")");
+        }
+    }
+
+    private static int count(Connection c) throws SQLException {
+        try (Statement s = c.createStatement();
+             ResultSet rs = s.executeQuery("SELECT count(*) FROM rolled_back")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.opentable.db.postgres.junit.EmbeddedPostgresRules;
+import com.opentable.db.postgres.junit.PreparedDbRule;
+
+public class SharedClusterTest {
+
+    @Rule
+    public PreparedDbRule dbA = EmbeddedPostgresRules.preparedDatabase(new PreparedDbTest.SimplePreparer("shared_a"));
+    @Rule
+    public PreparedDbRule dbB = EmbeddedPostgresRules.preparedDatabase(new PreparedDbTest.SimplePreparer("shared_b"));
+
+    @Test
+    public void testPreparersShareOneCluster() throws SQLException {
+        assertEquals(dbA.getConnectionInfo().getPort(), dbB.getConnectionInfo().getPort());
+
+        try (Connection c = dbA.getTestDatabase().getConnection()) {
+            assertTrue(tableExists(c, "shared_a"));
+            assertFalse(tableExists(c, "shared_b"));
+        }
+        try (Connection c = dbB.getTestDatabase().getConnection()) {
+            assertTrue(tableExists(c, "shared_b"));
+            assertFalse(tableExists(c, "shared_a"));
+        }
+    }
+
+    private boolean tableExists(Connection c, String table) throws SQLException {
+        try (ResultSet rs = c.getMetaData().getTables(null, "public", table, null)) {
+            return rs.next();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TemplateCacheTest {
+
+    @Rule
+    public TemporaryFolder tf = new TemporaryFolder();
+
+    @Test
+    public void testKeyIsStable() {
+        final String key = TemplateCache.key(EmbeddedPostgres.builder().configFingerprint(), "17.2", "abc");
+        assertEquals(key, TemplateCache.key(EmbeddedPostgres.builder().configFingerprint(), "17.2", "abc"));
+        assertNotEquals(key, TemplateCache.key(EmbeddedPostgres.builder().configFingerprint(), "17.3", "abc"));
+        assertNotEquals(key, TemplateCache.key(EmbeddedPostgres.builder().setServerConfig("work_mem", "8MB").configFingerprint(), "17.2", "abc"));
+    }
+
+    @Test
+    public void testRestoredFromCache() throws Exception {
+        final Path cacheDirectory = tf.newFolder().toPath();
+        final CountingPreparer preparer = new CountingPreparer();
+
+        // Compacting forces a separate template within the same JVM, restored from the same cache entry.
+        assertTableExists(PreparedDbProvider.forPreparer(preparer, Collections.emptyList(),
+                PreparedDbProvider.options().setTemplateCacheDirectory(cacheDirectory)));
+        assertEquals(1, preparer.invocations.get());
+
+        assertTableExists(PreparedDbProvider.forPreparer(preparer, Collections.emptyList(),
+                PreparedDbProvider.options().setTemplateCacheDirectory(cacheDirectory).setCompactTemplate(true)));
+        assertEquals(1, preparer.invocations.get());
+    }
+
+    private void assertTableExists(PreparedDbProvider provider) throws SQLException {
+        try (DatabaseLease lease = provider.leaseDatabase();
+             Connection c = provider.createDataSourceFromConnectionInfo(lease.getConnectionInfo()).getConnection();
+             Statement s = c.createStatement();
+             ResultSet rs = s.executeQuery("SELECT count(1) FROM cached")) {
+            rs.next();
+            assertEquals(1, rs.getInt(1));
+        }
+    }
+
+    static class CountingPreparer implements DatabasePreparer {
+        private final AtomicInteger invocations = new AtomicInteger();
+
+        @Override
+        public void prepare(DataSource ds) throws SQLException {
+            invocations.incrementAndGet();
+            try (Connection c = ds.getConnection();
+                 Statement s = c.createStatement()) {
+                s.execute("CREATE TABLE cached (foo int)");
+                s.execute("INSERT INTO cached VALUES (1)");
+            }
+        }
+
+        @Override
+        public Optional<String> getFingerprint() {
+            return Optional.of("cached-v1");
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opentable.db.postgres.junit5;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Executable;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.junit.jupiter.api.extension.ParameterContext;
+
+import com.opentable.db.postgres.embedded.ConnectionInfo;
+import com.opentable.db.postgres.embedded.FlywayPreparer;
+
+/**
+ * Drives the extension the way Jupiter would, with stand-ins for its contexts, so it runs under JUnit 4.
+ */
+public class PreparedDbExtensionTest {
+    private static final int METHODS = 4;
+
+    @Test
+    public void testConcurrentMethodsGetTheirOwnDatabase() throws Exception {
+        final PreparedDbExtension extension = EmbeddedPostgresExtension.preparedDatabase(FlywayPreparer.forClasspathLocation("db/testing"))
+                .perMethodDatabase()
+                .customizeProvider(o -> o.setPrefetchDepth(METHODS));
+        extension.beforeAll(context(null));
+
+        final CountDownLatch allStarted = new CountDownLatch(METHODS);
+        final ExecutorService executor = Executors.newFixedThreadPool(METHODS);
+        final List<Future<String>> names = new ArrayList<>();
+        try {
+            for (int i = 0; i < METHODS; i++) {
+                final Callable<String> method = () -> {
+                    final ExtensionContext ctx = context(testMethod());
+                    extension.beforeEach(ctx);
+                    try {
+                        final DataSource injected = (DataSource) extension.resolveParameter(parameter(testMethod(), 0), ctx);
+                        assertSame(injected, extension.getTestDatabase());
+                        assertEquals(extension.getConnectionInfo(), extension.resolveParameter(parameter(testMethod(), 1), ctx));
+                        // Hold every database at once, so none can be handed out twice.
+                        allStarted.countDown();
+                        allStarted.await();
+                        return currentDatabase(injected);
+                    } finally {
+                        extension.afterEach(ctx);
+                    }
+                };
+                names.add(executor.submit(method));
+            }
+            final Set<String> distinct = new HashSet<>();
+            for (Future<String> name : names) {
+                distinct.add(name.get());
+            }
+            assertEquals(METHODS, distinct.size());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(0, extension.getDbProvider().getLiveDatabaseCount());
+        try {
+            extension.getTestDatabase();
+            fail("Returned a database outside of a test method");
+        } catch (AssertionError expected) {
+            // no test method on this thread
+        }
+        extension.afterAll(context(null));
+    }
+
+    @Test
+    public void testParametersOnlyForPerMethodDatabases() throws Exception {
+        final PreparedDbExtension classDatabase = EmbeddedPostgresExtension.preparedDatabase(FlywayPreparer.forClasspathLocation("db/testing"));
+        assertFalse(classDatabase.supportsParameter(parameter(testMethod(), 0), context(testMethod())));
+
+        final PreparedDbExtension perMethod = EmbeddedPostgresExtension.preparedDatabase(FlywayPreparer.forClasspathLocation("db/testing"))
+                .perMethodDatabase();
+        assertTrue(perMethod.supportsParameter(parameter(testMethod(), 0), context(testMethod())));
+        assertTrue(perMethod.supportsParameter(parameter(testMethod(), 1), context(testMethod())));
+        // @BeforeAll methods and constructors have no per-method database.
+        assertFalse(perMethod.supportsParameter(parameter(testMethod(), 0), context(null)));
+        assertFalse(perMethod.supportsParameter(parameter(SampleTest.class.getDeclaredConstructor(DataSource.class), 0), context(null)));
+        assertFalse(perMethod.supportsParameter(parameter(testMethod(), 2), context(testMethod())));
+    }
+
+    private static String currentDatabase(DataSource ds) throws Exception {
+        try (Connection c = ds.getConnection();
+             Statement s = c.createStatement();
+             ResultSet rs = s.executeQuery("SELECT current_database()")) {
+            assertTrue(rs.next());
+            return rs.getString(1);
+        }
+    }
+
+    static class SampleTest {
+        SampleTest(DataSource ds) {
+            assertNotNull(ds);
+        }
+
+        void test(DataSource ds, ConnectionInfo info, String other) {
+            // only its parameters are used
+        }
+    }
+
+    private static Method testMethod() throws NoSuchMethodException {
+        return SampleTest.class.getDeclaredMethod("test", DataSource.class, ConnectionInfo.class, String.class);
+    }
+
+    /**
+     * @param testMethod the test method, or null for a class context
+     */
+    private static ExtensionContext context(Method testMethod) {
+        final Map<Object, Object> values = new HashMap<>();
+        final ExtensionContext.Store store = (ExtensionContext.Store) Proxy.newProxyInstance(PreparedDbExtensionTest.class.getClassLoader(),
+                new Class<?>[] {ExtensionContext.Store.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "put":
+                            values.put(args[0], args[1]);
+                            return null;
+                        case "get":
+                            return values.get(args[0]);
+                        case "remove":
+                            return values.remove(args[0]);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        return (ExtensionContext) Proxy.newProxyInstance(PreparedDbExtensionTest.class.getClassLoader(),
+                new Class<?>[] {ExtensionContext.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getStore":
+                            return store;
+                        case "getTestMethod":
+                            return Optional.ofNullable(testMethod);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static ParameterContext parameter(Executable executable, int index) {
+        return (ParameterContext) Proxy.newProxyInstance(PreparedDbExtensionTest.class.getClassLoader(),
+                new Class<?>[] {ParameterContext.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getDeclaringExecutable":
+                            return executable;
+                        case "getParameter":
+                            return executable.getParameters()[index];
+                        case "getIndex":
+                            return index;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}